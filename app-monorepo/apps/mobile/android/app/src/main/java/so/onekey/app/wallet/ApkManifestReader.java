@@ -0,0 +1,316 @@
+package so.onekey.app.wallet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads the package name and versionCode of an APK without PackageManager: finds
+ * AndroidManifest.xml through the ZIP central directory, inflates only that entry and walks the
+ * binary XML up to the root &lt;manifest&gt; element.
+ *
+ * Free of Android types so the benchmark module can run it on a plain JVM.
+ */
+public class ApkManifestReader {
+    private static final String MANIFEST_NAME = "AndroidManifest.xml";
+
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+    private static final int EOCD_SIZE = 22;
+    private static final int MAX_COMMENT_SIZE = 0xffff;
+    private static final int CENTRAL_SIGNATURE = 0x02014b50;
+    private static final int LOCAL_SIGNATURE = 0x04034b50;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int METHOD_STORED = 0;
+    private static final int METHOD_DEFLATED = 8;
+    // a manifest larger than this is not a manifest we want to inflate
+    private static final int MAX_MANIFEST_SIZE = 4 * 1024 * 1024;
+    // some 80k entries with typical name lengths, well beyond any real APK
+    private static final int MAX_CENTRAL_SIZE = 8 * 1024 * 1024;
+
+    private static final int RES_STRING_POOL_TYPE = 0x0001;
+    private static final int RES_XML_TYPE = 0x0003;
+    private static final int RES_XML_START_ELEMENT_TYPE = 0x0102;
+    private static final int RES_XML_RESOURCE_MAP_TYPE = 0x0180;
+    private static final int UTF8_FLAG = 1 << 8;
+    private static final int TYPE_STRING = 0x03;
+    private static final int TYPE_FIRST_INT = 0x10;
+    private static final int TYPE_LAST_INT = 0x1f;
+    // android.R.attr ids, for manifests whose attribute names were stripped
+    private static final int ATTR_VERSION_CODE = 0x0101021b;
+    private static final int ATTR_VERSION_CODE_MAJOR = 0x01010576;
+
+    public static class Manifest {
+        public final String packageName;
+        public final long versionCode;
+
+        Manifest(String packageName, long versionCode) {
+            this.packageName = packageName;
+            this.versionCode = versionCode;
+        }
+    }
+
+    public static Manifest read(File apk) throws IOException {
+        byte[] xml;
+        try (RandomAccessFile file = new RandomAccessFile(apk, "r")) {
+            xml = readManifestEntry(file);
+        }
+        return parse(ByteBuffer.wrap(xml).order(ByteOrder.LITTLE_ENDIAN));
+    }
+
+    private static byte[] readManifestEntry(RandomAccessFile file) throws IOException {
+        long length = file.length();
+        int tailSize = (int) Math.min(length, EOCD_SIZE + MAX_COMMENT_SIZE);
+        ByteBuffer tail = readAt(file, length - tailSize, tailSize);
+        int eocd = -1;
+        for (int i = tailSize - EOCD_SIZE; i >= 0; i--) {
+            if (tail.getInt(i) == EOCD_SIGNATURE) {
+                eocd = i;
+                break;
+            }
+        }
+        if (eocd < 0) {
+            throw new IOException("not a zip file");
+        }
+        int entries = tail.getShort(eocd + 10) & 0xffff;
+        long centralSize = tail.getInt(eocd + 12) & 0xffffffffL;
+        long centralOffset = tail.getInt(eocd + 16) & 0xffffffffL;
+        if (centralOffset + centralSize > length) {
+            throw new IOException("central directory out of range");
+        }
+        if (centralSize > MAX_CENTRAL_SIZE) {
+            throw new IOException("central directory too large");
+        }
+
+        ByteBuffer central = readAt(file, centralOffset, (int) centralSize);
+        byte[] wanted = MANIFEST_NAME.getBytes(StandardCharsets.UTF_8);
+        int position = 0;
+        try {
+            // the entry count comes from the EOCD and may be more than the directory holds
+            for (int i = 0; i < entries && position + 46 <= centralSize; i++) {
+                if (central.getInt(position) != CENTRAL_SIGNATURE) {
+                    throw new IOException("bad central directory entry");
+                }
+                int method = central.getShort(position + 10) & 0xffff;
+                long compressedSize = central.getInt(position + 20) & 0xffffffffL;
+                long size = central.getInt(position + 24) & 0xffffffffL;
+                int nameLength = central.getShort(position + 28) & 0xffff;
+                int extraLength = central.getShort(position + 30) & 0xffff;
+                int commentLength = central.getShort(position + 32) & 0xffff;
+                long localOffset = central.getInt(position + 42) & 0xffffffffL;
+                if (position + 46 + nameLength > centralSize) {
+                    throw new IOException("central directory entry out of range");
+                }
+                if (nameLength == wanted.length && regionEquals(central, position + 46, wanted)) {
+                    return readEntry(file, method, compressedSize, size, localOffset);
+                }
+                position += 46 + nameLength + extraLength + commentLength;
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("truncated central directory", e);
+        }
+        throw new IOException("no " + MANIFEST_NAME);
+    }
+
+    private static byte[] readEntry(RandomAccessFile file, int method, long compressedSize, long size,
+                                    long localOffset) throws IOException {
+        if (size > MAX_MANIFEST_SIZE || compressedSize > MAX_MANIFEST_SIZE) {
+            throw new IOException("manifest too large");
+        }
+        ByteBuffer local = readAt(file, localOffset, LOCAL_HEADER_SIZE);
+        if (local.getInt(0) != LOCAL_SIGNATURE) {
+            throw new IOException("bad local header");
+        }
+        // the local name/extra lengths may differ from the central ones (e.g. alignment padding)
+        long dataOffset = localOffset + LOCAL_HEADER_SIZE
+                + (local.getShort(26) & 0xffff) + (local.getShort(28) & 0xffff);
+        byte[] data = readAt(file, dataOffset, (int) compressedSize).array();
+        if (method == METHOD_STORED) {
+            return data;
+        }
+        if (method != METHOD_DEFLATED) {
+            throw new IOException("unsupported compression " + method);
+        }
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(data);
+            byte[] out = new byte[(int) size];
+            int count = 0;
+            while (count < out.length && !inflater.finished()) {
+                int inflated = inflater.inflate(out, count, out.length - count);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                count += inflated;
+            }
+            if (count != out.length) {
+                throw new IOException("truncated manifest");
+            }
+            return out;
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static ByteBuffer readAt(RandomAccessFile file, long offset, int length) throws IOException {
+        // checked before allocating, the offsets and lengths come from the file itself
+        if (offset < 0 || length < 0 || offset + length > file.length()) {
+            throw new IOException("read out of range");
+        }
+        byte[] bytes = new byte[length];
+        file.seek(offset);
+        file.readFully(bytes);
+        return ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static boolean regionEquals(ByteBuffer buffer, int offset, byte[] expected) {
+        for (int i = 0; i < expected.length; i++) {
+            if (buffer.get(offset + i) != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Manifest parse(ByteBuffer xml) throws IOException {
+        try {
+            if ((xml.getShort(0) & 0xffff) != RES_XML_TYPE) {
+                throw new IOException("not a binary xml");
+            }
+            int position = xml.getShort(2) & 0xffff;
+            String[] strings = null;
+            int[] resourceIds = new int[0];
+            while (position < xml.limit()) {
+                int type = xml.getShort(position) & 0xffff;
+                int headerSize = xml.getShort(position + 2) & 0xffff;
+                int size = xml.getInt(position + 4);
+                if (size <= 0 || size > xml.limit() - position || headerSize > size) {
+                    throw new IOException("bad chunk size");
+                }
+                if (type == RES_STRING_POOL_TYPE) {
+                    strings = readStringPool(xml, position, headerSize);
+                } else if (type == RES_XML_RESOURCE_MAP_TYPE) {
+                    resourceIds = new int[(size - headerSize) / 4];
+                    for (int i = 0; i < resourceIds.length; i++) {
+                        resourceIds[i] = xml.getInt(position + headerSize + i * 4);
+                    }
+                } else if (type == RES_XML_START_ELEMENT_TYPE) {
+                    if (strings == null) {
+                        throw new IOException("element before string pool");
+                    }
+                    // the first element is <manifest>
+                    return readManifestElement(xml, position + headerSize, strings, resourceIds);
+                }
+                position += size;
+            }
+            throw new IOException("no manifest element");
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("truncated binary xml", e);
+        }
+    }
+
+    private static String[] readStringPool(ByteBuffer xml, int chunk, int headerSize) throws IOException {
+        int count = xml.getInt(chunk + 8);
+        // one offset of 4 bytes per string
+        if (count < 0 || count > (xml.limit() - chunk - headerSize) / 4) {
+            throw new IOException("bad string count");
+        }
+        int flags = xml.getInt(chunk + 16);
+        int stringsStart = chunk + xml.getInt(chunk + 20);
+        boolean utf8 = (flags & UTF8_FLAG) != 0;
+        String[] strings = new String[count];
+        for (int i = 0; i < count; i++) {
+            int offset = stringsStart + xml.getInt(chunk + headerSize + i * 4);
+            strings[i] = utf8 ? readUtf8(xml, offset) : readUtf16(xml, offset);
+        }
+        return strings;
+    }
+
+    private static String readUtf8(ByteBuffer xml, int offset) throws IOException {
+        // character count, then byte count, each one or two bytes
+        offset += (xml.get(offset) & 0x80) != 0 ? 2 : 1;
+        int length = xml.get(offset) & 0xff;
+        if ((length & 0x80) != 0) {
+            length = ((length & 0x7f) << 8) | (xml.get(offset + 1) & 0xff);
+            offset += 2;
+        } else {
+            offset += 1;
+        }
+        if (length > xml.limit() - offset) {
+            throw new IOException("string out of range");
+        }
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = xml.get(offset + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static String readUtf16(ByteBuffer xml, int offset) throws IOException {
+        int length = xml.getShort(offset) & 0xffff;
+        if ((length & 0x8000) != 0) {
+            length = ((length & 0x7fff) << 16) | (xml.getShort(offset + 2) & 0xffff);
+            offset += 4;
+        } else {
+            offset += 2;
+        }
+        if (length > (xml.limit() - offset) / 2) {
+            throw new IOException("string out of range");
+        }
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = xml.getChar(offset + i * 2);
+        }
+        return new String(chars);
+    }
+
+    private static Manifest readManifestElement(ByteBuffer xml, int ext, String[] strings, int[] resourceIds)
+            throws IOException {
+        int attributeStart = xml.getShort(ext + 8) & 0xffff;
+        int attributeSize = xml.getShort(ext + 10) & 0xffff;
+        int attributeCount = xml.getShort(ext + 12) & 0xffff;
+        String packageName = null;
+        long versionCode = 0;
+        long versionCodeMajor = 0;
+        for (int i = 0; i < attributeCount; i++) {
+            int attribute = ext + attributeStart + i * attributeSize;
+            int nameIndex = xml.getInt(attribute + 4);
+            int rawValue = xml.getInt(attribute + 8);
+            int dataType = xml.get(attribute + 15) & 0xff;
+            int data = xml.getInt(attribute + 16);
+            String name = nameIndex >= 0 && nameIndex < strings.length ? strings[nameIndex] : "";
+            int resourceId = nameIndex >= 0 && nameIndex < resourceIds.length ? resourceIds[nameIndex] : 0;
+            if ("package".equals(name) && rawValue >= 0 && rawValue < strings.length) {
+                packageName = strings[rawValue];
+            } else if ("versionCode".equals(name) || resourceId == ATTR_VERSION_CODE) {
+                versionCode = intValue(strings, rawValue, dataType, data) & 0xffffffffL;
+            } else if ("versionCodeMajor".equals(name) || resourceId == ATTR_VERSION_CODE_MAJOR) {
+                versionCodeMajor = intValue(strings, rawValue, dataType, data) & 0xffffffffL;
+            }
+        }
+        if (packageName == null) {
+            throw new IOException("manifest without package");
+        }
+        return new Manifest(packageName, (versionCodeMajor << 32) | versionCode);
+    }
+
+    private static int intValue(String[] strings, int rawValue, int dataType, int data) throws IOException {
+        if (dataType >= TYPE_FIRST_INT && dataType <= TYPE_LAST_INT) {
+            return data;
+        }
+        if (dataType == TYPE_STRING && rawValue >= 0 && rawValue < strings.length) {
+            try {
+                return Integer.decode(strings[rawValue]);
+            } catch (NumberFormatException e) {
+                throw new IOException("bad integer attribute " + strings[rawValue]);
+            }
+        }
+        throw new IOException("unexpected attribute type " + dataType);
+    }
+}
@@ -0,0 +1,160 @@
+package so.onekey.app.wallet;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Applies a bsdiff patch to rebuild a new APK from the installed one.
+ *
+ * Reads the BSDF2 container (as written by bsdiff's "--format=bsdf2") with uncompressed control,
+ * diff and extra blocks. Compression is left to the transport (gzip/br Content-Encoding), which
+ * keeps the three blocks seekable in place so neither the patch nor the old APK is held in memory.
+ *
+ * Layout:
+ *   0   5  "BSDF2"
+ *   5   3  compression type of the control, diff and extra blocks (0 = none)
+ *   8   8  length of the control block
+ *   16  8  length of the diff block
+ *   24  8  length of the new file
+ *   32     control block, diff block, extra block
+ */
+public class ApkPatcher {
+    private static final byte[] MAGIC = "BSDF2".getBytes(StandardCharsets.US_ASCII);
+    private static final int HEADER_SIZE = 32;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Writes the patched file to out and returns its length. Stops with an InterruptedIOException
+     * when the thread is interrupted.
+     */
+    public static long apply(File oldFile, File patchFile, OutputStream out) throws IOException {
+        long patchSize = patchFile.length();
+        byte[] header = new byte[HEADER_SIZE];
+        try (FileInputStream fis = new FileInputStream(patchFile)) {
+            readFully(fis, header, HEADER_SIZE);
+        }
+        if (!Arrays.equals(Arrays.copyOf(header, MAGIC.length), MAGIC)) {
+            throw new IOException("PATCH_FORMAT_UNSUPPORTED");
+        }
+        for (int i = 5; i < 8; i++) {
+            if (header[i] != 0) {
+                throw new IOException("PATCH_COMPRESSION_UNSUPPORTED");
+            }
+        }
+        long ctrlLength = offtin(header, 8);
+        long diffLength = offtin(header, 16);
+        long newSize = offtin(header, 24);
+        if (ctrlLength < 0 || diffLength < 0 || newSize < 0
+                || HEADER_SIZE + ctrlLength + diffLength > patchSize) {
+            throw new IOException("PATCH_CORRUPT");
+        }
+
+        try (InputStream ctrl = openAt(patchFile, HEADER_SIZE);
+             InputStream diff = openAt(patchFile, HEADER_SIZE + ctrlLength);
+             InputStream extra = openAt(patchFile, HEADER_SIZE + ctrlLength + diffLength);
+             RandomAccessFile old = new RandomAccessFile(oldFile, "r")) {
+            long oldSize = old.length();
+            byte[] ctrlBuffer = new byte[24];
+            byte[] buffer = new byte[BUFFER_SIZE];
+            byte[] oldBuffer = new byte[BUFFER_SIZE];
+            long newPos = 0;
+            long oldPos = 0;
+            while (newPos < newSize) {
+                readFully(ctrl, ctrlBuffer, 24);
+                long addLength = offtin(ctrlBuffer, 0);
+                long copyLength = offtin(ctrlBuffer, 8);
+                long seek = offtin(ctrlBuffer, 16);
+                if (addLength < 0 || copyLength < 0 || newPos + addLength + copyLength > newSize) {
+                    throw new IOException("PATCH_CORRUPT");
+                }
+
+                // new = old + diff, bytewise
+                long remaining = addLength;
+                while (remaining > 0) {
+                    checkInterrupted();
+                    int count = (int) Math.min(BUFFER_SIZE, remaining);
+                    readFully(diff, buffer, count);
+                    readOld(old, oldSize, oldPos, oldBuffer, count);
+                    for (int i = 0; i < count; i++) {
+                        buffer[i] += oldBuffer[i];
+                    }
+                    out.write(buffer, 0, count);
+                    oldPos += count;
+                    remaining -= count;
+                }
+
+                // bytes that have no counterpart in the old file
+                remaining = copyLength;
+                while (remaining > 0) {
+                    checkInterrupted();
+                    int count = (int) Math.min(BUFFER_SIZE, remaining);
+                    readFully(extra, buffer, count);
+                    out.write(buffer, 0, count);
+                    remaining -= count;
+                }
+
+                newPos += addLength + copyLength;
+                oldPos += seek;
+            }
+            return newSize;
+        }
+    }
+
+    private static void checkInterrupted() throws InterruptedIOException {
+        if (Thread.interrupted()) {
+            throw new InterruptedIOException("PATCH_CANCELLED");
+        }
+    }
+
+    private static InputStream openAt(File file, long position) throws IOException {
+        FileInputStream fis = new FileInputStream(file);
+        fis.getChannel().position(position);
+        return new BufferedInputStream(fis, BUFFER_SIZE);
+    }
+
+    /**
+     * Reads old[pos, pos + count) into buffer, with bytes outside the old file read as zero.
+     */
+    private static void readOld(RandomAccessFile old, long oldSize, long pos, byte[] buffer, int count)
+            throws IOException {
+        Arrays.fill(buffer, 0, count, (byte) 0);
+        long start = Math.max(pos, 0);
+        long end = Math.min(pos + count, oldSize);
+        if (start >= end) {
+            return;
+        }
+        old.seek(start);
+        old.readFully(buffer, (int) (start - pos), (int) (end - start));
+    }
+
+    private static void readFully(InputStream in, byte[] buffer, int count) throws IOException {
+        int read = 0;
+        while (read < count) {
+            int n = in.read(buffer, read, count - read);
+            if (n < 0) {
+                throw new EOFException("PATCH_TRUNCATED");
+            }
+            read += n;
+        }
+    }
+
+    /**
+     * bsdiff's sign-magnitude little-endian 64-bit integer.
+     */
+    private static long offtin(byte[] buffer, int offset) {
+        long value = buffer[offset + 7] & 0x7F;
+        for (int i = 6; i >= 0; i--) {
+            value = (value << 8) | (buffer[offset + i] & 0xFF);
+        }
+        return (buffer[offset + 7] & 0x80) != 0 ? -value : value;
+    }
+}
@@ -2,11 +2,17 @@ package so.onekey.app.wallet;
 
 import android.app.NotificationChannel;
 import android.app.NotificationManager;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.IntentFilter;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
-import android.icu.text.SimpleDateFormat;
 import android.os.Build;
+import android.os.SystemClock;
 import android.content.Intent;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
 import android.net.Uri;
 import android.util.Log;
 
@@ -15,27 +21,50 @@ import androidx.core.app.ActivityCompat;
 import androidx.core.app.NotificationCompat;
 import androidx.core.app.NotificationManagerCompat;
 
-import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.File;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.FileOutputStream;
-import java.io.FileReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.DigestOutputStream;
 import java.security.MessageDigest;
-import java.util.Date;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
-import com.betomorrow.rnfilelogger.FileLoggerModule;
 import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.LifecycleEventListener;
 import com.facebook.react.bridge.ReactApplicationContext;
 import com.facebook.react.bridge.ReactContextBaseJavaModule;
 import com.facebook.react.bridge.ReactMethod;
 import com.facebook.react.bridge.Promise;
+import com.facebook.react.bridge.PromiseImpl;
+import com.facebook.react.bridge.ReadableArray;
 import com.facebook.react.bridge.ReadableMap;
+import com.facebook.react.bridge.WritableArray;
 import com.facebook.react.bridge.WritableMap;
+import com.facebook.react.common.LifecycleState;
 import com.facebook.react.modules.core.DeviceEventManagerModule;
 
 import javax.net.ssl.HttpsURLConnection;
@@ -45,26 +74,72 @@ import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.Response;
 import okhttp3.ResponseBody;
-import okio.Buffer;
-import okio.BufferedSink;
 import okio.BufferedSource;
-import okio.Okio;
 
-public class AutoUpdateModule extends ReactContextBaseJavaModule {
+public class AutoUpdateModule extends ReactContextBaseJavaModule implements LifecycleEventListener {
     private static final String CHANNEL_ID = "updateApp";
     private static final int NOTIFICATION_ID = 1;
+    // frequent log lines, formatted only when logs are exported
+    private static final NativeLogger.Event LOG_PROGRESS = NativeLogger.event("AutoUpdate", "update/progress",
+            "%d%% %d/%d %dB/s eta %ds");
+    private static final NativeLogger.Event LOG_RATE_LIMIT = NativeLogger.event("AutoUpdate", "rateLimit",
+            "%dB/s, foreground %b");
+    private static final NativeLogger.Event LOG_TRANSFER = NativeLogger.event("AutoUpdate", "transfer", "%s");
+    private static final NativeLogger.Event LOG_DOWNLOAD_START = NativeLogger.event("AutoUpdate", "downloadAPK",
+            "starting at %d/%d, resumed %b");
+    private static final NativeLogger.Event LOG_RESUME_JOB = NativeLogger.event("AutoUpdate", "resumePendingJobs",
+            "%s from %d");
+    private static final NativeLogger.Event LOG_ASC = NativeLogger.event("AutoUpdate", "ascFileContent",
+            "%d bytes, sha256 %s");
     private NotificationManagerCompat mNotifyManager;
-    private NotificationCompat.Builder mBuilder;
     private ReactApplicationContext rContext;
-    private FileLoggerModule fileLogger;
-    private Thread rThread;
-    private boolean isDownloading = false;
+    private final DownloadManager downloads = new DownloadManager();
+    // checks the chunks of a file against its ChunkManifest on every core
+    private final ExecutorService chunkPool = Executors.newFixedThreadPool(
+            Math.max(2, Runtime.getRuntime().availableProcessors()), DownloadManager.backgroundThreads("update-chunks"));
+    // signature, package and digest checks, kept off the native modules thread
+    private final ExecutorService verifyExecutor = Executors.newSingleThreadExecutor(
+            DownloadManager.backgroundThreads("update-verify"));
+    private final Set<Future<?>> verifications = Collections.newSetFromMap(new ConcurrentHashMap<Future<?>, Boolean>());
+    // longer-running work of its own: warming up, patching, waiting on the two halves of downloadAndVerify
+    private final ExecutorService background = Executors.newCachedThreadPool(
+            DownloadManager.backgroundThreads("update-background"));
+    private final RateLimiter rateLimiter = new RateLimiter();
+    // bytes per second set from JS, 0 for no cap
+    private volatile long rateLimit = 0;
+    // apply rateLimit only while an activity is in the foreground
+    private volatile boolean rateLimitForegroundOnly = true;
+    private volatile boolean notificationsAllowed = false;
+    private final VerificationReceipts receipts;
+    private final DownloadJobQueue jobQueue;
+    // promises of jobs waiting for their constraints, keyed by filePath
+    private final Map<String, List<Promise>> pendingPromises = new HashMap<>();
+    private ConnectivityManager.NetworkCallback networkCallback;
+    private BroadcastReceiver powerReceiver;
+    // DownloadJobQueue conditions as last reported by the network callback and power broadcasts
+    private volatile int networkConditions;
+    private volatile boolean charging;
+    // conditions jobs were last resumed for, they are resumed again only when these change
+    private int conditions = -1;
+    // wakes failed jobs once their backoff is over
+    private final ScheduledExecutorService retryScheduler = Executors.newSingleThreadScheduledExecutor(
+            DownloadManager.backgroundThreads("update-retry"));
+    @Nullable private ScheduledFuture<?> scheduledRetry;
+    private final TransferMetrics transferMetrics;
+    // shared by APK and ASC downloads so they reuse pooled connections and report telemetry
+    private final OkHttpClient httpClient;
 
     public AutoUpdateModule(ReactApplicationContext context) {
         super(context);
         rContext = context;
         mNotifyManager = NotificationManagerCompat.from(this.rContext.getApplicationContext());
-        fileLogger = new FileLoggerModule(getReactApplicationContext());
+        receipts = new VerificationReceipts(context);
+        jobQueue = new DownloadJobQueue(context);
+        transferMetrics = new TransferMetrics(summary -> NativeLogger.log(LOG_TRANSFER, summary));
+        httpClient = new OkHttpClient.Builder()
+                .connectTimeout(10, TimeUnit.SECONDS)
+                .eventListenerFactory(transferMetrics.factory())
+                .build();
     }
 
     @Override
@@ -72,43 +147,235 @@ public class AutoUpdateModule extends ReactContextBaseJavaModule {
         return "AutoUpdateModule";
     }
 
+    @Override
+    public void initialize() {
+        super.initialize();
+        Context appContext = rContext.getApplicationContext();
+        int initial = DownloadJobQueue.conditions(appContext);
+        networkConditions = initial & ~DownloadJobQueue.CHARGING;
+        charging = (initial & DownloadJobQueue.CHARGING) != 0;
+        ConnectivityManager cm = (ConnectivityManager) appContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+        if (cm != null) {
+            networkCallback = new ConnectivityManager.NetworkCallback() {
+                @Override
+                public void onAvailable(Network network) {
+                    // before API 26 onCapabilitiesChanged does not necessarily follow
+                    networkConditions = DownloadJobQueue.networkConditions(cm.getNetworkCapabilities(network));
+                    onConditionsChanged();
+                }
+
+                @Override
+                public void onCapabilitiesChanged(Network network, NetworkCapabilities capabilities) {
+                    networkConditions = DownloadJobQueue.networkConditions(capabilities);
+                    onConditionsChanged();
+                }
+
+                @Override
+                public void onLost(Network network) {
+                    networkConditions = 0;
+                    onConditionsChanged();
+                }
+            };
+            cm.registerDefaultNetworkCallback(networkCallback);
+        }
+        powerReceiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                charging = Intent.ACTION_POWER_CONNECTED.equals(intent.getAction());
+                onConditionsChanged();
+            }
+        };
+        IntentFilter powerFilter = new IntentFilter(Intent.ACTION_POWER_CONNECTED);
+        powerFilter.addAction(Intent.ACTION_POWER_DISCONNECTED);
+        appContext.registerReceiver(powerReceiver, powerFilter);
+        rContext.addLifecycleEventListener(this);
+        applyRateLimit();
+        // Parse the release key ring and pick a SHA-256 implementation before the first
+        // verification needs them.
+        background.execute(() -> {
+            Verification.warmUp();
+            log("sha256Provider", Digests.selectProvider());
+        });
+        // Pick up downloads left over by a previous process.
+        onConditionsChanged();
+    }
+
+    @Override
+    public void invalidate() {
+        Context appContext = rContext.getApplicationContext();
+        ConnectivityManager cm = (ConnectivityManager) appContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+        if (cm != null && networkCallback != null) {
+            cm.unregisterNetworkCallback(networkCallback);
+        }
+        if (powerReceiver != null) {
+            appContext.unregisterReceiver(powerReceiver);
+        }
+        rContext.removeLifecycleEventListener(this);
+        retryScheduler.shutdownNow();
+        // a bridge reload creates a new module, these threads would otherwise outlive this one
+        for (Future<?> verification : verifications) {
+            verification.cancel(true);
+        }
+        verifyExecutor.shutdownNow();
+        chunkPool.shutdownNow();
+        background.shutdownNow();
+        downloads.cancelAll();
+        downloads.shutdown();
+        super.invalidate();
+    }
+
+    @Override
+    public void onHostResume() {
+        applyRateLimit();
+    }
+
+    @Override
+    public void onHostPause() {
+        applyRateLimit();
+    }
+
+    @Override
+    public void onHostDestroy() {
+        applyRateLimit();
+    }
+
+    /**
+     * Caps downloads while the user is in the app, so they leave room for the wallet's own
+     * requests, and lets them run at full speed once it is backgrounded.
+     */
+    private void applyRateLimit() {
+        boolean foreground = rContext.getLifecycleState() == LifecycleState.RESUMED;
+        long rate = rateLimitForegroundOnly && !foreground ? 0 : rateLimit;
+        if (rate != rateLimiter.rate()) {
+            NativeLogger.log(LOG_RATE_LIMIT, rate, foreground);
+        }
+        rateLimiter.setRate(rate);
+    }
+
+    /**
+     * Takes effect on running downloads too. bytesPerSecond 0 removes the cap; foregroundOnly
+     * (default true) lifts it while the app is in the background.
+     */
+    @ReactMethod
+    public void setDownloadRateLimit(final ReadableMap map, final Promise promise) {
+        rateLimit = map.hasKey("bytesPerSecond") ? Math.max(0, (long) map.getDouble("bytesPerSecond")) : 0;
+        rateLimitForegroundOnly = !map.hasKey("foregroundOnly") || map.getBoolean("foregroundOnly");
+        applyRateLimit();
+        promise.resolve(null);
+    }
+
     private void sendEvent(String eventName, @Nullable WritableMap params) {
+        if (!rContext.hasActiveReactInstance()) {
+            return;
+        }
         rContext.getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class).emit(eventName, params);
     }
 
     public void log(String name, String msg) {
-        SimpleDateFormat sdf = new SimpleDateFormat("HH:mm:ss");
-        String currentTime = sdf.format(new Date());
-        fileLogger.write(1, currentTime + " | INFO : app => native => AutoUpdate:" + name + ": " + msg);
+        NativeLogger.log("AutoUpdate", name, msg);
     }
 
-    private void sendDownloadError(Exception e, Promise promise) {
-        isDownloading = false;
+    /**
+     * Fails the current attempt of a download job: the job backs off before it is tried again and
+     * the error is reported to the callers waiting on it, if any. A job resumed on its own has
+     * none, its first failure was already reported.
+     */
+    private void sendDownloadError(Exception e, DownloadManager.Transfer transfer) {
+        if (!transfer.isCancelled()) {
+            long retryAt = jobQueue.fail(transfer.key);
+            log("downloadAPK", e.getMessage() + (retryAt > 0
+                    ? ", retrying in " + (retryAt - System.currentTimeMillis()) / 1000 + "s" : ", giving up"));
+            scheduleRetry();
+        }
+        List<Promise> promises = downloads.detach(transfer);
+        if (promises.isEmpty()) {
+            return;
+        }
         WritableMap params = Arguments.createMap();
         params.putString("message", e.getMessage());
         sendEvent("update/error", params);
-        promise.reject(e);
+        for (Promise promise : promises) {
+            promise.reject(e);
+        }
+    }
+
+    /**
+     * Runs task on the verification thread. clearCache cancels it, which rejects promise with
+     * VERIFICATION_CANCELLED and interrupts a hash in progress. A task that throws rejects
+     * promise with what it threw.
+     */
+    private void verifyInBackground(final Promise promise, Runnable task) {
+        FutureTask<Void> verification = new FutureTask<Void>(task, null) {
+            @Override
+            protected void done() {
+                verifications.remove(this);
+                if (isCancelled()) {
+                    promise.reject(new Exception("VERIFICATION_CANCELLED"));
+                    return;
+                }
+                try {
+                    get();
+                } catch (ExecutionException e) {
+                    // the future would keep it and JS would wait forever
+                    log("verifyInBackground", "verification failed: " + e.getCause());
+                    promise.reject(e.getCause());
+                } catch (InterruptedException ignored) {
+                    // already done, get() does not block
+                }
+            }
+        };
+        verifications.add(verification);
+        verifyExecutor.execute(verification);
+    }
+
+    /**
+     * update/verifying events while a file is hashed, at most one per percent.
+     */
+    private Digests.Progress verifyingProgress() {
+        final int[] lastPercent = {-1};
+        return (hashed, total) -> {
+            int percent = total > 0 ? (int) (hashed * 100 / total) : 100;
+            if (percent == lastPercent[0]) {
+                return;
+            }
+            lastPercent[0] = percent;
+            WritableMap params = Arguments.createMap();
+            params.putInt("progress", percent);
+            params.putDouble("bytes", hashed);
+            params.putDouble("total", total);
+            sendEvent("update/verifying", params);
+        };
     }
 
     private File buildFile(String path) {
         return new File(path.replace("file:///", "/"));
     }
 
-    private String bytesToHex(byte[] bytes) {
-        StringBuilder result = new StringBuilder();
-        for (byte b : bytes) {
-            result.append(Integer.toString((b & 0xff) + 0x100, 16).substring(1));
-        }
-        return result.toString();
+    public boolean checkFilePackage(File file, @Nullable String downloadUrl, Promise promise) {
+        return checkFilePackage(file, downloadUrl, null, promise);
     }
 
-    public boolean checkFilePackage(File file, Promise promise) {
-        PackageManager pm = getReactApplicationContext().getPackageManager();
-        PackageInfo info = pm.getPackageArchiveInfo(file.getAbsolutePath(), 0);
+    /**
+     * signedSha256 is the digest already extracted from a verified signature file, null to look
+     * it up here by downloadUrl's file name.
+     */
+    private boolean checkFilePackage(File file, @Nullable String downloadUrl, @Nullable String signedSha256,
+                                     Promise promise) {
+        File ascFile = buildFile(file.getAbsolutePath() + ".SHA256SUMS.asc");
+        String fileName = SignedSums.fileName(downloadUrl);
+        String extractedSha256 = signedSha256 != null ? signedSha256 : getSha256(file.getAbsolutePath(), downloadUrl);
+        // a receipt only counts for what the current signed sums say about this file
+        if (!extractedSha256.isEmpty()
+                && receipts.verifiedSha256(file, ascFile, fileName, extractedSha256) != null) {
+            log("checkFilePackage", "unchanged since verified, sha256 " + extractedSha256);
+            return true;
+        }
+
+        String packageName = readPackageName(file);
         String appPackageName = getReactApplicationContext().getPackageName();
-        if (info != null && info.packageName != null) {
-            log("checkFilePackage", info.packageName + " " + appPackageName + " " + String.valueOf(info.packageName.equals(appPackageName)));
-            if (!info.packageName.equals(appPackageName)) {
+        if (packageName != null) {
+            log("checkFilePackage", packageName + " " + appPackageName + " " + String.valueOf(packageName.equals(appPackageName)));
+            if (!packageName.equals(appPackageName)) {
                 promise.reject(new Exception("PACKAGE_NAME_MISMATCH"));
                 return false;
             }
@@ -116,23 +383,30 @@ public class AutoUpdateModule extends ReactContextBaseJavaModule {
 
         // Verify SHA256
         try {
-            String extractedSha256 = getSha256(file.getAbsolutePath());
-            MessageDigest digest = MessageDigest.getInstance("SHA-256");
-            try (BufferedInputStream bis = new BufferedInputStream(new FileInputStream(file))) {
-                byte[] buffer = new byte[8192];
-                int count;
-                while ((count = bis.read(buffer)) > 0) {
-                    digest.update(buffer, 0, count);
+            // Prefer the digest computed while the file was downloaded, it is only reused if the
+            // file still has the size and mtime it was saved with.
+            String calculatedSha256 = FileDigest.load(file);
+            if (calculatedSha256 == null) {
+                Boolean chunksMatch = verifyChunks(file, extractedSha256);
+                if (chunksMatch != null && !chunksMatch) {
+                    promise.reject(new Exception("UPDATE_INSTALLATION_NOT_SAFE_ALERT_TEXT"));
+                    return false;
+                }
+                if (chunksMatch != null) {
+                    calculatedSha256 = extractedSha256;
                 }
             }
-            String calculatedSha256 = bytesToHex(digest.digest());
+            if (calculatedSha256 == null) {
+                calculatedSha256 = Digests.toHex(Digests.digestOf(file, file.length(), verifyingProgress()).digest());
+            }
 
             log("calSha256 ", calculatedSha256 + " " + extractedSha256 + " " + String.valueOf(calculatedSha256.equals(extractedSha256)));
             if (!calculatedSha256.equals(extractedSha256)) {
                 promise.reject(new Exception("UPDATE_INSTALLATION_NOT_SAFE_ALERT_TEXT"));
                 return false;
             }
-            
+
+            receipts.record(file, ascFile, fileName, calculatedSha256);
             return true;
         } catch (Exception e) {
             promise.reject(e);
@@ -140,34 +414,70 @@ public class AutoUpdateModule extends ReactContextBaseJavaModule {
         }
     }
 
-    public String getSha256(final String filePath) {
+    /**
+     * Whether every chunk of file matches its chunk manifest, checked in parallel. Null when there
+     * is no manifest for this digest, in which case the whole file has to be hashed instead.
+     */
+    @Nullable
+    private Boolean verifyChunks(File file, String signedSha256) throws IOException, InterruptedException {
+        ChunkManifest manifest = ChunkManifest.load(file);
+        if (manifest == null || !manifest.sha256.equals(signedSha256)) {
+            return null;
+        }
+        long start = SystemClock.elapsedRealtime();
+        List<Integer> mismatches = manifest.mismatches(file, chunkPool, verifyingProgress());
+        log("verifyChunks", manifest.chunkCount() + " chunks, " + mismatches.size() + " mismatched, root "
+                + manifest.root + " in " + (SystemClock.elapsedRealtime() - start) + "ms");
+        return mismatches.isEmpty();
+    }
+
+    /**
+     * Package name from the APK's manifest. Reads only the manifest entry, which is far cheaper
+     * than getPackageArchiveInfo parsing the whole archive; the latter is kept as a fallback for
+     * archives the reader does not handle.
+     */
+    @Nullable
+    private String readPackageName(File file) {
+        long start = SystemClock.elapsedRealtime();
+        try {
+            ApkManifestReader.Manifest manifest = ApkManifestReader.read(file);
+            log("readPackageName", manifest.packageName + " versionCode " + manifest.versionCode
+                    + " in " + (SystemClock.elapsedRealtime() - start) + "ms");
+            return manifest.packageName;
+        } catch (IOException | RuntimeException e) {
+            log("readPackageName", "manifest reader failed: " + e.getMessage());
+        }
+        PackageManager pm = getReactApplicationContext().getPackageManager();
+        PackageInfo info = pm.getPackageArchiveInfo(file.getAbsolutePath(), 0);
+        log("readPackageName", "getPackageArchiveInfo in " + (SystemClock.elapsedRealtime() - start) + "ms");
+        return info != null ? info.packageName : null;
+    }
+
+    /**
+     * The digest signed for the file downloaded from downloadUrl, looked up by its file name in the
+     * SHA256SUMS next to filePath. "" when the signature does not verify or nothing is signed for
+     * that name.
+     */
+    public String getSha256(final String filePath, @Nullable final String downloadUrl) {
         File ascFile = buildFile(filePath + ".SHA256SUMS.asc");
         if (!ascFile.exists()) {
             return "";
         }
-        String cacheFilePath = getReactApplicationContext().getCacheDir().getAbsolutePath() + "/gpg-verification-temp";
-        File cacheFile = new File(cacheFilePath);
-        if (cacheFile.exists()) {
-            cacheFile.delete();
-        }
-        String ascFileContentString = "";
+        byte[] ascFileContent;
         try {
-            BufferedReader reader = new BufferedReader(new FileReader(ascFile));
-            StringBuilder content = new StringBuilder();
-            String line;
-            while ((line = reader.readLine()) != null) {
-                content.append(line).append("\n");
-            }
-            reader.close();
-            ascFileContentString = content.toString();
+            ascFileContent = Verification.readSignedFile(ascFile);
         } catch (IOException e) {
             log("AutoUpdateModule", "Error reading ASC file: " + e.getMessage());
             return "";
         }
         String extractedSha256 = "";
         try {
-            extractedSha256 = Verification.extractedSha256FromVerifyAscFile(ascFileContentString, cacheFilePath);
-            log("extractedSha256", extractedSha256);
+            SignedSums sums = SignedSums.of(ascFileContent);
+            if (sums != null) {
+                String fileName = SignedSums.fileName(downloadUrl);
+                extractedSha256 = sums.sha256For(fileName);
+                log("extractedSha256", fileName + " " + extractedSha256 + " (" + sums.size() + " signed)");
+            }
         } catch (Exception e) {
             log("AutoUpdateModule", "Error extracting SHA256: " + e.getMessage());
         }
@@ -178,19 +488,21 @@ public class AutoUpdateModule extends ReactContextBaseJavaModule {
     public void verifyASC(final ReadableMap map, final Promise promise) {
         String filePath = map.getString("filePath");
         String downloadUrl = map.getString("downloadUrl");
-        // Verify GPG signature
-        // Extract SHA256 from the verified content
-        try {
-            String extractedSha256 = getSha256(filePath);
-            if (extractedSha256.isEmpty()) {
+        verifyInBackground(promise, () -> {
+            // Verify GPG signature
+            // Extract SHA256 from the verified content
+            try {
+                String extractedSha256 = getSha256(filePath, downloadUrl);
+                if (extractedSha256.isEmpty()) {
+                    promise.reject(new Exception("UPDATE_SIGNATURE_VERIFICATION_FAILED_ALERT_TEXT"));
+                    return;
+                }
+                promise.resolve(null);
+            } catch (Exception e) {
+                log("verifyASC", "Error verifying ASC file: " + e.getMessage());
                 promise.reject(new Exception("UPDATE_SIGNATURE_VERIFICATION_FAILED_ALERT_TEXT"));
-                return;
             }
-            promise.resolve(null);
-        } catch (Exception e) {
-            log("verifyASC", "Error verifying ASC file: " + e.getMessage());
-            promise.reject(new Exception("UPDATE_SIGNATURE_VERIFICATION_FAILED_ALERT_TEXT"));
-        }
+        });
     }
 
     @ReactMethod
@@ -200,32 +512,54 @@ public class AutoUpdateModule extends ReactContextBaseJavaModule {
          // Fetch the signature file
          String ascFileUrl = url + ".SHA256SUMS.asc";
          String ascFilePath = filePath + ".SHA256SUMS.asc";
-         
+         List<String> ascFileUrls = new ArrayList<>();
+         ascFileUrls.add(ascFileUrl);
+         for (String mirror : readMirrors(map)) {
+             ascFileUrls.add(mirror + ".SHA256SUMS.asc");
+         }
+         final DownloadManager.Transfer transfer = downloads.register(ascFilePath, ascFileUrl,
+                 Collections.singletonList(promise));
+         if (transfer == null) {
+             return;
+         }
+         downloads.submit(transfer, () -> {
          try {
-            OkHttpClient client = new OkHttpClient();
-            Request request = new Request.Builder()
-                .url(ascFileUrl)
-                .build();
-             Response response = client.newCall(request).execute();
-             if (!response.isSuccessful()) {
-                 promise.reject(new IOException(String.valueOf(response.code())));
-                 return;
-             }
-             
+            OkHttpClient client = httpClient;
+            Response response;
+            if (ascFileUrls.size() > 1) {
+                MirrorRace.Winner winner = MirrorRace.race(downloads.executor(), client, ascFileUrls, 0, -1);
+                transfer.setCall(winner.call);
+                response = winner.response;
+            } else {
+                Request request = new Request.Builder()
+                    .url(ascFileUrl)
+                    .build();
+                Call call = client.newCall(request);
+                transfer.setCall(call);
+                response = call.execute();
+            }
              StringBuilder ascFileContent = new StringBuilder();
-             String line = "";
-             try (BufferedReader reader = new BufferedReader(new InputStreamReader(response.body().byteStream()))) {
-                 while ((line = reader.readLine()) != null) {
-                     ascFileContent.append(line).append("\n");
+             try (Response ascResponse = response) {
+                 if (!ascResponse.isSuccessful()) {
+                     downloads.reject(transfer, new IOException(String.valueOf(ascResponse.code())));
+                     return;
+                 }
+                 String line = "";
+                 try (BufferedReader reader = new BufferedReader(new InputStreamReader(ascResponse.body().byteStream()))) {
+                     while ((line = reader.readLine()) != null) {
+                         ascFileContent.append(line).append("\n");
+                     }
                  }
              }
 
              String ascFileContentString = ascFileContent.toString();
              if (ascFileContentString.isEmpty()) {
-                 promise.reject(new Exception(""));
+                 downloads.reject(transfer, new Exception(""));
                  return;
              }
-             log("ascFileContent", ascFileContentString);
+             // the signed sums are published next to the release, their digest is enough to tell which
+             byte[] ascBytes = ascFileContentString.getBytes();
+             NativeLogger.log(LOG_ASC, ascBytes.length, Digests.toHex(Digests.newSha256().digest(ascBytes)));
             // Write the ASC file content to the specified path
             File ascFile = buildFile(ascFilePath);
             if (ascFile.exists()) {
@@ -233,37 +567,204 @@ public class AutoUpdateModule extends ReactContextBaseJavaModule {
             }
             
             try (FileOutputStream fos = new FileOutputStream(ascFile)) {
-                fos.write(ascFileContentString.getBytes());
+                fos.write(ascBytes);
             }
-            
-            promise.resolve(null);
+            downloadChunkManifest(transfer, buildFile(filePath), url, readMirrors(map));
+
+            downloads.resolve(transfer, null);
          } catch (Exception e) {
             log("downloadASC", "Error writing ASC file: " + e.getMessage());
-            promise.reject(e);
+            downloads.reject(transfer, e);
          }
+         });
+    }
+
+    /**
+     * Fetches the optional chunk manifest of the artifact at url from the first source that has
+     * it. Releases without one are verified as a whole, so failures only get logged.
+     */
+    private void downloadChunkManifest(DownloadManager.Transfer transfer, File target, String url, List<String> mirrors) {
+        File manifestFile = ChunkManifest.manifestFile(target);
+        if (manifestFile.exists()) {
+            manifestFile.delete();
+        }
+        List<String> sources = new ArrayList<>();
+        sources.add(url);
+        sources.addAll(mirrors);
+        for (String source : sources) {
+            Call call = httpClient.newCall(new Request.Builder().url(source + ChunkManifest.SUFFIX).build());
+            transfer.setCall(call);
+            try (Response response = call.execute()) {
+                if (response.code() == 404) {
+                    log("downloadChunkManifest", "none for " + source);
+                    return;
+                }
+                if (!response.isSuccessful()) {
+                    continue;
+                }
+                try (FileOutputStream fos = new FileOutputStream(manifestFile)) {
+                    fos.write(response.body().bytes());
+                }
+                return;
+            } catch (IOException e) {
+                if (transfer.isCancelled()) {
+                    return;
+                }
+                log("downloadChunkManifest", source + ": " + e.getMessage());
+            }
+        }
+    }
+
+    @Nullable
+    private static String downloadUrlOf(ReadableMap map) {
+        return map.hasKey("downloadUrl") && !map.isNull("downloadUrl") ? map.getString("downloadUrl") : null;
+    }
+
+    private static List<String> readMirrors(ReadableMap map) {
+        List<String> mirrors = new ArrayList<>();
+        if (map.hasKey("mirrors") && !map.isNull("mirrors")) {
+            ReadableArray array = map.getArray("mirrors");
+            for (int i = 0; i < array.size(); i++) {
+                mirrors.add(array.getString(i));
+            }
+        }
+        return mirrors;
+    }
+
+    /**
+     * downloadASC, downloadAPK, verifyASC and verifyAPK in one call: the signature file and the APK
+     * are fetched at the same time, the signature is checked while the APK is still streaming and
+     * the digest hashed during the download is compared as soon as it lands. Resolves with the
+     * path of the verified APK.
+     */
+    @ReactMethod
+    public void downloadAndVerify(final ReadableMap map, final Promise promise) {
+        String filePath = map.getString("filePath");
+        final PromiseLatch asc = new PromiseLatch();
+        final PromiseLatch apk = new PromiseLatch();
+        downloadASC(map, asc.promise);
+        downloadAPK(map, apk.promise);
+        background.execute(() -> {
+            try {
+                String error = asc.await();
+                if (error != null) {
+                    promise.reject(new Exception(error));
+                    return;
+                }
+                String signedSha256 = getSha256(filePath, map.getString("downloadUrl"));
+                if (signedSha256.isEmpty()) {
+                    promise.reject(new Exception("UPDATE_SIGNATURE_VERIFICATION_FAILED_ALERT_TEXT"));
+                    return;
+                }
+                log("downloadAndVerify", "signature verified, waiting for the APK");
+                error = apk.await();
+                if (error != null) {
+                    promise.reject(new Exception(error));
+                    return;
+                }
+                File downloadedFile = buildFile(filePath);
+                if (!downloadedFile.exists()) {
+                    promise.reject(new Exception("NOT_FOUND_PACKAGE"));
+                    return;
+                }
+                verifyInBackground(promise, () -> {
+                    if (checkFilePackage(downloadedFile, map.getString("downloadUrl"), signedSha256, promise)) {
+                        promise.resolve(filePath);
+                    }
+                });
+            } catch (InterruptedException | RuntimeException e) {
+                promise.reject(e);
+            }
+        });
+    }
+
+    /**
+     * A promise settled by native code and awaited on a background thread.
+     */
+    private static class PromiseLatch {
+        private final CountDownLatch latch = new CountDownLatch(1);
+        @Nullable private volatile String error;
+        final Promise promise = new PromiseImpl(
+                args -> latch.countDown(),
+                args -> {
+                    ReadableMap map = args.length > 0 && args[0] instanceof ReadableMap ? (ReadableMap) args[0] : null;
+                    String message = map != null && map.hasKey("message") ? map.getString("message") : null;
+                    error = message != null ? message : "UNKNOWN_ERROR";
+                    latch.countDown();
+                });
+
+        /**
+         * Null once resolved, the rejection message otherwise.
+         */
+        @Nullable
+        String await() throws InterruptedException {
+            latch.await();
+            return error;
+        }
     }
 
     @ReactMethod void verifyAPK(final ReadableMap map, final Promise promise) {
         String filePath = map.getString("filePath");
+        String downloadUrl = downloadUrlOf(map);
 
         File downloadedFile = buildFile(filePath);
         if (!downloadedFile.exists()) {
             promise.reject(new Exception("NOT_FOUND_PACKAGE"));
+            return;
         }
-        boolean isValidAPK = this.checkFilePackage(downloadedFile, promise);
-        if (isValidAPK) {
-            promise.resolve(null);
-        } else {
-            promise.reject(new Exception("UPDATE_INSTALLATION_NOT_SAFE_ALERT_TEXT"));
+        verifyInBackground(promise, () -> {
+            boolean isValidAPK = this.checkFilePackage(downloadedFile, downloadUrl, promise);
+            if (isValidAPK) {
+                promise.resolve(null);
+            } else {
+                promise.reject(new Exception("UPDATE_INSTALLATION_NOT_SAFE_ALERT_TEXT"));
+            }
+        });
+    }
+
+    /**
+     * Per-phase timings of the most recent update transfers, oldest first.
+     */
+    @ReactMethod
+    public void getTransferMetrics(final Promise promise) {
+        WritableArray result = Arguments.createArray();
+        for (TransferMetrics.Summary summary : transferMetrics.recent()) {
+            WritableMap item = Arguments.createMap();
+            item.putString("label", summary.label);
+            item.putString("host", summary.host);
+            item.putString("protocol", summary.protocol);
+            item.putString("error", summary.error);
+            item.putInt("status", summary.status);
+            item.putDouble("dnsMs", summary.dnsMs);
+            item.putDouble("connectMs", summary.connectMs);
+            item.putDouble("tlsMs", summary.tlsMs);
+            item.putDouble("ttfbMs", summary.ttfbMs);
+            item.putDouble("bodyMs", summary.bodyMs);
+            item.putDouble("bodyBytes", summary.bodyBytes);
+            item.putDouble("bytesPerSecond", summary.bytesPerSecond());
+            item.putDouble("totalMs", summary.totalMs);
+            item.putInt("retries", summary.retries);
+            item.putDouble("retryMs", summary.retryMs);
+            result.pushMap(item);
         }
+        promise.resolve(result);
     }
 
     @ReactMethod
     public void clearCache(final Promise promise) {
-        if (this.rThread != null) {
-            this.rThread.interrupt();
+        for (Future<?> verification : verifications) {
+            verification.cancel(true);
+        }
+        downloads.cancelAll();
+        jobQueue.clear();
+        synchronized (pendingPromises) {
+            for (List<Promise> waiting : pendingPromises.values()) {
+                for (Promise pending : waiting) {
+                    pending.reject(new Exception("DOWNLOAD_CANCELLED"));
+                }
+            }
+            pendingPromises.clear();
         }
-        this.isDownloading = false;
         promise.resolve(null);
     }
 
@@ -272,25 +773,266 @@ public class AutoUpdateModule extends ReactContextBaseJavaModule {
         String url = map.getString("downloadUrl");
         String filePath = map.getString("filePath");
         String notificationTitle = map.getString("notificationTitle");
-        if (this.isDownloading) {
+        // Opt-in: split the file into byte ranges fetched over parallel connections.
+        int connections = map.hasKey("connections") ? map.getInt("connections") : 1;
+        boolean unmeteredOnly = map.hasKey("unmeteredOnly") && map.getBoolean("unmeteredOnly");
+        boolean chargingOnly = map.hasKey("chargingOnly") && map.getBoolean("chargingOnly");
+        DownloadJobQueue.Job job = new DownloadJobQueue.Job(url, filePath, notificationTitle, connections,
+                unmeteredOnly, chargingOnly, readMirrors(map));
+        jobQueue.put(job);
+        if (!DownloadJobQueue.constraintsMet(conditions(), job)) {
+            log("downloadAPK", "waiting for constraints, unmeteredOnly " + unmeteredOnly + ", chargingOnly " + chargingOnly);
+            park(filePath, Collections.singletonList(promise));
+            return;
+        }
+        startJob(job, Collections.singletonList(promise));
+    }
+
+    /**
+     * Keeps the promises of a job that waits for its constraints until it starts again.
+     */
+    private void park(String filePath, List<Promise> promises) {
+        synchronized (pendingPromises) {
+            List<Promise> waiting = pendingPromises.get(filePath);
+            if (waiting == null) {
+                waiting = new ArrayList<>();
+                pendingPromises.put(filePath, waiting);
+            }
+            waiting.addAll(promises);
+        }
+    }
+
+    /**
+     * Resumes jobs on startup and whenever connectivity, metering or charging actually changes.
+     * The network callback also fires for changes no job depends on, such as signal strength.
+     */
+    private synchronized void onConditionsChanged() {
+        int current = conditions();
+        if (current == conditions) {
             return;
         }
-        this.isDownloading = true;
-        this.rThread = new Thread(new Runnable() {
+        conditions = current;
+        resumePendingJobs();
+    }
+
+    /**
+     * The current DownloadJobQueue conditions, from the cached network and charging state.
+     */
+    private int conditions() {
+        return networkConditions | (charging ? DownloadJobQueue.CHARGING : 0);
+    }
+
+    /**
+     * Wakes resumePendingJobs when the earliest failed job is due again.
+     */
+    private synchronized void scheduleRetry() {
+        long now = System.currentTimeMillis();
+        long next = 0;
+        for (DownloadJobQueue.Job job : jobQueue.pending()) {
+            if (job.retryAt > now && (next == 0 || job.retryAt < next)) {
+                next = job.retryAt;
+            }
+        }
+        if (scheduledRetry != null) {
+            scheduledRetry.cancel(false);
+            scheduledRetry = null;
+        }
+        if (next > 0 && !retryScheduler.isShutdown()) {
+            scheduledRetry = retryScheduler.schedule(this::resumePendingJobs,
+                    next - now, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Starts every persisted job whose constraints hold, whose backoff is over and that is not
+     * running yet.
+     */
+    private synchronized void resumePendingJobs() {
+        long now = System.currentTimeMillis();
+        for (DownloadJobQueue.Job job : jobQueue.pending()) {
+            if (job.retryAt <= now && !downloads.isActive(job.filePath)
+                    && DownloadJobQueue.constraintsMet(conditions(), job)) {
+                List<Promise> promises;
+                synchronized (pendingPromises) {
+                    promises = pendingPromises.remove(job.filePath);
+                }
+                NativeLogger.log(LOG_RESUME_JOB, job.filePath, job.offset);
+                startJob(job, promises != null ? promises : Collections.<Promise>emptyList());
+            }
+        }
+        scheduleRetry();
+    }
+
+    private synchronized void startJob(final DownloadJobQueue.Job job, List<Promise> promises) {
+        final DownloadManager.Transfer transfer = downloads.register(job.filePath, job.url, promises);
+        if (transfer == null) {
+            // joined the transfer already running for this file
+            return;
+        }
+        final String url = job.url;
+        final String filePath = job.filePath;
+        final String notificationTitle = job.notificationTitle;
+        final int connections = job.connections;
+        final List<String> urls = job.urls();
+        downloads.submit(transfer, new Runnable() {
             private Call call;
+            private NotificationCompat.Builder mBuilder;
+            private int loggedDecile = -1;
+            private final ProgressPublisher publisher = new ProgressPublisher(new ProgressPublisher.Listener() {
+                @Override
+                public void onProgress(ProgressPublisher.Progress progress) {
+                    WritableMap params = Arguments.createMap();
+                    params.putInt("progress", Math.max(progress.percent, 0));
+                    params.putDouble("bytes", progress.bytes);
+                    params.putDouble("total", progress.total);
+                    params.putDouble("bytesPerSecond", progress.bytesPerSecond);
+                    params.putDouble("etaSeconds", progress.etaSeconds);
+                    sendEvent("update/downloading", params);
+                    int decile = progress.percent / 10;
+                    if (decile != loggedDecile) {
+                        loggedDecile = decile;
+                        NativeLogger.log(LOG_PROGRESS, progress.percent, progress.bytes, progress.total,
+                                progress.bytesPerSecond, progress.etaSeconds);
+                    }
+                }
+
+                @Override
+                public void onNotification(ProgressPublisher.Progress progress) {
+                    if (progress.percent < 0) {
+                        mBuilder.setProgress(0, 0, true);
+                    } else {
+                        mBuilder.setProgress(100, progress.percent, false);
+                    }
+                    notifyNotification(NOTIFICATION_ID, mBuilder);
+                }
+            });
+            private boolean paused = false;
+            // the mirror currently serving the download
+            private String currentUrl = url;
+            // mirrors that went silent mid-transfer, not switched back to
+            private final List<String> silent = new ArrayList<>();
+            private long slowSince = 0;
+
             boolean checkInterrupt() {
-                boolean isInterrupted = Thread.currentThread().isInterrupted();
+                boolean isInterrupted = transfer.isCancelled() || Thread.currentThread().isInterrupted();
                 if (isInterrupted && call != null) {
                     this.call.cancel();
                 }
                 return isInterrupted;
             };
 
+            void track(Call call) {
+                this.call = call;
+                transfer.setCall(call);
+            }
+
+            Response execute(OkHttpClient client, long offset, @Nullable DownloadState state) throws IOException {
+                Request.Builder builder = new Request.Builder().url(url);
+                if (state != null) {
+                    builder.header("Range", "bytes=" + offset + "-")
+                            .header("If-Range", state.validator());
+                }
+                track(client.newCall(builder.build()));
+                return this.call.execute();
+            }
+
+            /**
+             * With mirrors, races them and keeps the first to deliver a byte; otherwise a plain
+             * request to url.
+             */
+            Response open(OkHttpClient client, long offset, @Nullable DownloadState state) throws IOException {
+                if (urls.size() == 1) {
+                    return execute(client, offset, state);
+                }
+                try {
+                    MirrorRace.Winner winner = MirrorRace.race(downloads.executor(), client, urls, offset,
+                            state != null ? state.contentLength : -1);
+                    log("downloadAPK", "using mirror " + winner.url);
+                    track(winner.call);
+                    currentUrl = winner.url;
+                    return winner.response;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("mirror race interrupted");
+                }
+            }
+
+            boolean isStalled() {
+                long now = SystemClock.elapsedRealtime();
+                if (publisher.bytesPerSecond() >= MirrorRace.STALL_BYTES_PER_SECOND) {
+                    slowSince = 0;
+                    return false;
+                }
+                if (slowSince == 0) {
+                    slowSince = now;
+                    return false;
+                }
+                return now - slowSince >= MirrorRace.STALL_WINDOW_MS;
+            }
+
+            /**
+             * Continues the transfer at position from whichever other mirror answers first, or
+             * returns null to stay on the current one.
+             */
+            @Nullable
+            Response switchMirror(OkHttpClient client, long position, long contentLength) {
+                slowSince = 0;
+                List<String> others = new ArrayList<>(urls);
+                others.remove(currentUrl);
+                others.removeAll(silent);
+                if (others.isEmpty()) {
+                    return null;
+                }
+                try {
+                    MirrorRace.Winner winner = MirrorRace.race(downloads.executor(), client, others, position,
+                            contentLength);
+                    log("downloadAPK", "switching from " + currentUrl + " to " + winner.url + " at " + position);
+                    track(winner.call);
+                    currentUrl = winner.url;
+                    return winner.response;
+                } catch (IOException e) {
+                    log("downloadAPK", "staying on " + currentUrl + ": " + e.getMessage());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return null;
+            }
+
+            /**
+             * Stops without failing when the job's network/charging constraints no longer hold,
+             * leaving the partial file and the job in place until they do again.
+             */
+            boolean shouldPause() {
+                if (DownloadJobQueue.constraintsMet(conditions(), job)) {
+                    return false;
+                }
+                paused = true;
+                return true;
+            }
+
+            void pause(long offset) {
+                jobQueue.updateOffset(filePath, offset);
+                log("downloadAPK", "paused at " + offset + ", constraints not met");
+                park(filePath, downloads.detach(transfer));
+            }
+
             public void run() {
+                notificationsAllowed = ActivityCompat.checkSelfPermission(rContext,
+                        android.Manifest.permission.POST_NOTIFICATIONS) == PackageManager.PERMISSION_GRANTED;
                 File downloadedFile = buildFile(filePath);
-                if (downloadedFile.exists()) {
-                    downloadedFile.delete();
+                DownloadState state = DownloadState.load(downloadedFile);
+                long offset = 0;
+                if (state != null && state.canResume(url, downloadedFile)) {
+                    offset = state.resumeOffset(downloadedFile);
+                } else {
+                    state = null;
+                    if (downloadedFile.exists()) {
+                        downloadedFile.delete();
+                    }
+                    DownloadState.clear(downloadedFile);
                 }
+                FileDigest.clear(downloadedFile);
+                receipts.invalidate(downloadedFile);
 
                 mBuilder = new NotificationCompat.Builder(rContext.getApplicationContext(), CHANNEL_ID)
                         .setContentTitle(notificationTitle)
@@ -304,80 +1046,360 @@ public class AutoUpdateModule extends ReactContextBaseJavaModule {
                     mNotifyManager.createNotificationChannel(channel);
                 }
 
-                Request request = new Request.Builder().url(url).build();
-                OkHttpClient client = new OkHttpClient.Builder()
-                        .connectTimeout(10, TimeUnit.SECONDS)
-                        .build();
+                OkHttpClient client = httpClient;
+
+                if (state != null && state.segments != null) {
+                    if (downloadSegmented(client, downloadedFile, state)) {
+                        finish(downloadedFile, null);
+                    }
+                    return;
+                }
+
                 Response response = null;
-                this.call = client.newCall(request);
+                boolean resumed = false;
                 try {
-                    response = this.call.execute();
+                    try {
+                        response = open(client, offset, state);
+                    } catch (IOException e) {
+                        if (state == null || urls.size() == 1 || transfer.isCancelled()) {
+                            throw e;
+                        }
+                        // No mirror could continue the range, start over.
+                        log("downloadAPK", "no mirror resumed at " + offset + ", restarting from 0");
+                        state = null;
+                        response = open(client, 0, null);
+                    }
+                    if (state != null && response.code() == 416) {
+                        // The partial file no longer fits the remote one, start over.
+                        log("downloadAPK", "range not satisfiable, restarting from 0");
+                        response.close();
+                        state = null;
+                        response = open(client, 0, null);
+                    }
+                    resumed = state != null
+                            && response.code() == 206
+                            && offset == DownloadState.parseContentRangeStart(response.header("Content-Range"))
+                            // a raced mirror was already checked against the expected length, ETags differ across mirrors
+                            && (urls.size() > 1 || state.matches(response.header("ETag"), response.header("Last-Modified")));
+                    if (state != null && !resumed) {
+                        log("downloadAPK", "server ignored range or validator changed, restarting from 0");
+                        offset = 0;
+                        if (response.code() == 206) {
+                            // Part of some other file or range, never written from 0: ask for the whole file.
+                            response.close();
+                            state = null;
+                            response = open(client, 0, null);
+                        }
+                    }
                 } catch (IOException e) {
-                    sendDownloadError(e, promise);
+                    sendDownloadError(e, transfer);
                     return;
                 }
 
                 if (!response.isSuccessful()) {
-                    sendDownloadError(new Exception(String.valueOf(response.code())), promise);
+                    response.close();
+                    // Not worth retrying on the next network change.
+                    jobQueue.remove(filePath);
+                    sendDownloadError(new Exception(String.valueOf(response.code())), transfer);
+                    return;
+                }
+
+                if (!resumed && response.code() == 206) {
+                    // a body that does not start at 0 cannot be written as the whole file
+                    response.close();
+                    sendDownloadError(new IOException("unexpected partial content"), transfer);
                     return;
                 }
+                String etag = response.header("ETag");
+                String lastModified = response.header("Last-Modified");
 
                 ResponseBody body = response.body();
-                long contentLength = body.contentLength();
+                long contentLength = body.contentLength() < 0 ? -1 : offset + body.contentLength();
+
+                if (!resumed && SegmentedDownloader.supports(contentLength, connections, response.header("Accept-Ranges"))) {
+                    response.close();
+                    DownloadState segmentedState = new DownloadState(url, etag, lastModified, contentLength,
+                            SegmentedDownloader.split(contentLength, connections));
+                    if (segmentedState.validator() != null) {
+                        if (downloadSegmented(client, downloadedFile, segmentedState)) {
+                            finish(downloadedFile, null);
+                        }
+                        return;
+                    }
+                    // Without a validator a later range cannot be tied to the same file, stay on one stream.
+                    try {
+                        response = open(client, 0, null);
+                    } catch (IOException e) {
+                        sendDownloadError(e, transfer);
+                        return;
+                    }
+                    body = response.body();
+                }
+
                 BufferedSource source = body.source();
 
-                BufferedSink sink = null;
+                // Hash the bytes on their way to disk so verification does not have to read the file again.
+                MessageDigest digest;
+                DownloadState progressState = new DownloadState(url, etag, lastModified, contentLength);
+                if (contentLength > 0) {
+                    // the file gets pre-allocated, its length no longer tells where to resume
+                    progressState.position = offset;
+                }
                 try {
-                    sink = Okio.buffer(Okio.sink(downloadedFile));
-                } catch (FileNotFoundException e) {
-                    sendDownloadError(e, promise);
+                    DiskSpace.ensure(downloadedFile, contentLength);
+                    digest = resumed ? Digests.digestOf(downloadedFile, offset) : Digests.newSha256();
+                    progressState.save(downloadedFile);
+                } catch (IOException | NoSuchAlgorithmException e) {
+                    response.close();
+                    if ("NOT_ENOUGH_SPACE".equals(e.getMessage())) {
+                        jobQueue.remove(filePath);
+                    }
+                    sendDownloadError(e, transfer);
                     return;
                 }
-                Buffer sinkBuffer = sink.buffer();
+                NativeLogger.log(LOG_DOWNLOAD_START, offset, contentLength, resumed);
 
-                long totalBytesRead = 0;
-                int bufferSize = 8 * 1024;
+                long totalBytesRead = offset;
+                long lastSave = SystemClock.elapsedRealtime();
                 sendEvent("update/start", null);
-                int prevProgress = 0;
-                try {
-                    for (long bytesRead; (bytesRead = source.read(sinkBuffer, bufferSize)) != -1;) {
+                publisher.start(offset);
+                try (RandomAccessFile file = new RandomAccessFile(downloadedFile, "rw");
+                     CoalescingFileWriter writer = new CoalescingFileWriter(file.getChannel(), offset, digest)) {
+                    file.setLength(offset);
+                    DiskSpace.preallocate(file, contentLength);
+                    while (true) {
+                        int bytesRead;
                         try {
-                            sink.emit();
-                        } catch (IOException e) {
-                            sendDownloadError(e, promise);
+                            bytesRead = writer.readFrom(source, rateLimiter.chunkSize());
+                        } catch (SocketTimeoutException e) {
+                            // A mirror that stopped sending entirely never shows up as slow.
+                            if (urls.size() == 1 || contentLength <= 0 || transfer.isCancelled()) {
+                                throw e;
+                            }
+                            silent.add(currentUrl);
+                            writer.flush();
+                            Response next = switchMirror(client, writer.position(), contentLength);
+                            if (next == null) {
+                                throw e;
+                            }
+                            response.close();
+                            response = next;
+                            source = next.body().source();
+                            continue;
+                        }
+                        if (bytesRead == -1) {
+                            break;
+                        }
+                        if (transfer.isCancelled()) {
+                            response.close();
+                            return;
+                        }
+                        try {
+                            rateLimiter.acquire(bytesRead);
+                        } catch (InterruptedException e) {
+                            // only clearCache interrupts
+                            response.close();
                             return;
                         }
                         totalBytesRead += bytesRead;
-                        int progress = (int) ((totalBytesRead * 100) / contentLength);
-                        if (prevProgress != progress) {
-                            try {
-                                WritableMap params = Arguments.createMap();
-                                params.putInt("progress", progress);
-                                sendEvent("update/downloading", params);
-                                log("update/progress", progress + "");
-                            } catch (Exception e) {
-                                sendDownloadError(e, promise);
-                                return;
-                            }
-                            mBuilder.setProgress(100, progress, false);
-                            notifyNotification(NOTIFICATION_ID, mBuilder);
-                            prevProgress = progress;
+                        boolean published;
+                        try {
+                            published = publisher.update(totalBytesRead, contentLength);
+                        } catch (Exception e) {
+                            sendDownloadError(e, transfer);
+                            return;
+                        }
+                        if (published) {
+                            writer.adapt(publisher.bytesPerSecond());
                             if (this.checkInterrupt()) {
                                 return;
                             }
+                            if (shouldPause()) {
+                                break;
+                            }
+                            long now = SystemClock.elapsedRealtime();
+                            if (progressState.position >= 0 && now - lastSave >= SegmentedDownloader.SAVE_INTERVAL_MS) {
+                                // Data first, so the saved position never runs ahead of what is on disk.
+                                writer.flush();
+                                progressState.position = writer.position();
+                                progressState.save(downloadedFile, file.getChannel());
+                                lastSave = now;
+                            }
+                            // a capped transfer is slow on purpose
+                            if (urls.size() > 1 && contentLength > 0 && rateLimiter.rate() == 0 && isStalled()) {
+                                writer.flush();
+                                Response next = switchMirror(client, writer.position(), contentLength);
+                                if (next != null) {
+                                    response.close();
+                                    response = next;
+                                    source = next.body().source();
+                                }
+                            }
+                        }
+                    }
+                    if (paused && progressState.position >= 0) {
+                        writer.flush();
+                        progressState.position = writer.position();
+                        try {
+                            progressState.save(downloadedFile, file.getChannel());
+                        } catch (IOException e) {
+                            log("downloadAPK", "failed to save position: " + e.getMessage());
                         }
                     }
                 } catch (IOException e) {
-                    sendDownloadError(e, promise);
+                    response.close();
+                    if (transfer.isCancelled()) {
+                        // clearCache cancelled the call or interrupted a file write, which closes the channel.
+                        return;
+                    }
+                    sendDownloadError(e, transfer);
+                    return;
+                }
+                response.close();
+                if (paused) {
+                    pause(totalBytesRead);
                     return;
                 }
+                finish(downloadedFile, Digests.toHex(digest.digest()));
+            }
+
+            boolean downloadSegmented(OkHttpClient client, File downloadedFile, DownloadState state) {
+                log("downloadAPK", "segmented download, " + state.segments.size() + " segments, "
+                        + state.downloaded() + "/" + state.contentLength);
+                SegmentedDownloader downloader = new SegmentedDownloader(client, currentUrl, downloadedFile, state, rateLimiter);
+                sendEvent("update/start", null);
                 try {
-                    sink.flush();
-                    sink.close();
-                    source.close();
+                    DiskSpace.ensure(downloadedFile, state.contentLength);
+                    state.save(downloadedFile);
+                    publisher.start(state.downloaded());
+                    downloader.download((downloaded, total) -> {
+                        publisher.update(downloaded, total);
+                        if (shouldPause()) {
+                            // Makes the downloader stop at its next poll.
+                            Thread.currentThread().interrupt();
+                        }
+                    });
+                    return true;
+                } catch (SegmentedDownloader.ValidatorChangedException e) {
+                    // The remote file changed under us, the next attempt has to start from 0.
+                    jobQueue.remove(filePath);
+                    DownloadState.clear(downloadedFile);
+                    downloadedFile.delete();
+                    sendDownloadError(e, transfer);
                 } catch (IOException e) {
-                    sendDownloadError(e, promise);
-                    return;
+                    sendDownloadError(e, transfer);
+                } catch (InterruptedException e) {
+                    if (paused) {
+                        pause(state.downloaded());
+                    } else {
+                        log("downloadAPK", "segmented download interrupted");
+                    }
+                }
+                return false;
+            }
+
+            /**
+             * Returns the manifest's whole-file digest once every chunk of the file matches,
+             * after re-fetching mismatched chunks with range requests, or null.
+             */
+            @Nullable
+            String repairChunks(File downloadedFile, ChunkManifest manifest) {
+                try {
+                    List<Integer> mismatches = manifest.mismatches(downloadedFile, chunkPool, verifyingProgress());
+                    log("repairChunks", mismatches.size() + "/" + manifest.chunkCount() + " chunks mismatched");
+                    if (mismatches.isEmpty()) {
+                        return manifest.sha256;
+                    }
+                    if (mismatches.size() * 2 > manifest.chunkCount()) {
+                        // a different file rather than a damaged one
+                        return null;
+                    }
+                    try (RandomAccessFile file = new RandomAccessFile(downloadedFile, "rw");
+                         FileChannel channel = file.getChannel()) {
+                        for (int index : mismatches) {
+                            if (!fetchChunk(channel, manifest, index)) {
+                                log("repairChunks", "chunk " + index + " could not be fetched again");
+                                return null;
+                            }
+                        }
+                        channel.force(false);
+                    }
+                    log("repairChunks", "re-fetched " + mismatches.size() + " chunks");
+                    return manifest.sha256;
+                } catch (IOException | NoSuchAlgorithmException e) {
+                    log("repairChunks", e.getMessage());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return null;
+            }
+
+            /**
+             * Fetches one chunk from the first source whose bytes match its digest and writes it
+             * in place; bytes that do not match are never written.
+             */
+            boolean fetchChunk(FileChannel channel, ChunkManifest manifest, int index)
+                    throws IOException, NoSuchAlgorithmException {
+                long start = manifest.chunkStart(index);
+                int length = manifest.chunkLength(index);
+                List<String> sources = new ArrayList<>(urls);
+                // the mirror that delivered the rest of the file first
+                sources.remove(currentUrl);
+                sources.add(0, currentUrl);
+                for (String source : sources) {
+                    if (transfer.isCancelled()) {
+                        return false;
+                    }
+                    Request request = new Request.Builder().url(source)
+                            .header("Range", "bytes=" + start + "-" + (start + length - 1))
+                            .build();
+                    track(httpClient.newCall(request));
+                    byte[] data;
+                    try (Response response = call.execute()) {
+                        if (response.code() != 206
+                                || DownloadState.parseContentRangeStart(response.header("Content-Range")) != start) {
+                            continue;
+                        }
+                        data = response.body().bytes();
+                    } catch (IOException e) {
+                        log("repairChunks", source + ": " + e.getMessage());
+                        continue;
+                    }
+                    if (data.length != length || !manifest.matches(index, ByteBuffer.wrap(data))) {
+                        continue;
+                    }
+                    ByteBuffer buffer = ByteBuffer.wrap(data);
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer, start + buffer.position());
+                    }
+                    return true;
+                }
+                return false;
+            }
+
+            void finish(File downloadedFile, @Nullable String sha256) {
+                DownloadState.clear(downloadedFile);
+                jobQueue.remove(filePath);
+                ChunkManifest manifest = ChunkManifest.load(downloadedFile);
+                if (manifest != null && !manifest.sha256.equals(sha256)) {
+                    // Segmented downloads have no digest yet and a stream's digest that does not
+                    // match may come down to a few bad bytes: check chunk by chunk and fetch
+                    // again only those that differ.
+                    String repaired = repairChunks(downloadedFile, manifest);
+                    if (repaired != null) {
+                        sha256 = repaired;
+                    }
+                }
+                try {
+                    if (sha256 == null) {
+                        // Segments land out of order, hash the assembled file once.
+                        sha256 = Digests.toHex(Digests.digestOf(downloadedFile, downloadedFile.length(),
+                                verifyingProgress()).digest());
+                    }
+                    FileDigest.save(downloadedFile, sha256);
+                    log("downloadAPK", "sha256 " + sha256);
+                } catch (IOException | NoSuchAlgorithmException e) {
+                    log("downloadAPK", "failed to save digest: " + e.getMessage());
                 }
                 log("downloadAPK", "downloadPackage: Download completed");
                 sendEvent("update/downloaded", null);
@@ -385,7 +1407,6 @@ public class AutoUpdateModule extends ReactContextBaseJavaModule {
                 if (this.checkInterrupt()) {
                     return;
                 }
-                isDownloading = false;
 
                 // Intent installIntent = new Intent(Intent.ACTION_VIEW);
 
@@ -406,17 +1427,62 @@ public class AutoUpdateModule extends ReactContextBaseJavaModule {
 
                 notifyNotification(NOTIFICATION_ID, mBuilder);
                 log("downloadAPKFailed", "downloadPackage: notifyNotification done");
-                promise.resolve(null);
+                downloads.resolve(transfer, null);
+            }
+        });
+    }
+
+    /**
+     * Rebuilds the new APK at filePath from the installed one and a bsdiff patch already on disk
+     * (downloaded like any other artifact), then leaves it to verifyAPK/installAPK as usual.
+     */
+    @ReactMethod
+    public void applyAPKPatch(final ReadableMap map, final Promise promise) {
+        String patchFilePath = map.getString("patchFilePath");
+        String filePath = map.getString("filePath");
+        background.execute(() -> {
+            File baseFile = new File(rContext.getApplicationInfo().sourceDir);
+            File patchFile = buildFile(patchFilePath);
+            File outputFile = buildFile(filePath);
+            if (!patchFile.exists()) {
+                promise.reject(new Exception("NOT_FOUND_PACKAGE"));
+                return;
+            }
+            DownloadState.clear(outputFile);
+            FileDigest.clear(outputFile);
+            receipts.invalidate(outputFile);
+            long startTime = SystemClock.elapsedRealtime();
+            try {
+                MessageDigest digest = Digests.newSha256();
+                long outputBytes;
+                try (OutputStream out = new BufferedOutputStream(
+                        new DigestOutputStream(new FileOutputStream(outputFile), digest), 64 * 1024)) {
+                    outputBytes = ApkPatcher.apply(baseFile, patchFile, out);
+                }
+                FileDigest.save(outputFile, Digests.toHex(digest.digest()));
+                long durationMs = SystemClock.elapsedRealtime() - startTime;
+                long patchBytes = patchFile.length();
+                log("applyAPKPatch", "base " + baseFile.length() + ", patch " + patchBytes + ", output "
+                        + outputBytes + ", saved " + (outputBytes - patchBytes) + " bytes in " + durationMs + "ms");
+                WritableMap result = Arguments.createMap();
+                result.putDouble("durationMs", durationMs);
+                result.putDouble("patchBytes", patchBytes);
+                result.putDouble("outputBytes", outputBytes);
+                result.putDouble("bytesSaved", outputBytes - patchBytes);
+                promise.resolve(result);
+            } catch (Exception e) {
+                outputFile.delete();
+                log("applyAPKPatch", "Error applying patch: " + e.getMessage());
+                promise.reject(e);
             }
         });
-        this.rThread.start();
     }
 
 
     public void notifyNotification(int notificationId, NotificationCompat.Builder builder) {
         try {
-            NotificationManagerCompat mNotifyManager = NotificationManagerCompat.from(this.rContext.getApplicationContext());
-            if (ActivityCompat.checkSelfPermission(this.rContext, android.Manifest.permission.POST_NOTIFICATIONS) != PackageManager.PERMISSION_GRANTED) {
+            // checked once per download instead of on every update
+            if (!notificationsAllowed) {
                 return;
             }
             mNotifyManager.notify(notificationId, builder.build());
@@ -428,25 +1494,28 @@ public class AutoUpdateModule extends ReactContextBaseJavaModule {
     @ReactMethod
     public void installAPK(final ReadableMap map, final Promise promise) {
         String filePath = map.getString("filePath");
+        String downloadUrl = downloadUrlOf(map);
         File file = buildFile(filePath);
-        if (!this.checkFilePackage(file, promise)) {
-            promise.reject("NOT_FOUND_PACKAGE");
-            return;
-        }
-        try {
-            Intent intent = new Intent(Intent.ACTION_VIEW);
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
-                Uri apkUri = OnekeyFileProvider.getUriForFile(rContext, file);
-                intent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
-                intent.setDataAndType(apkUri, "application/vnd.android.package-archive");
-            } else {
-                intent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
-                intent.setDataAndType(Uri.fromFile(file), "application/vnd.android.package-archive");
+        verifyInBackground(promise, () -> {
+            if (!this.checkFilePackage(file, downloadUrl, promise)) {
+                promise.reject("NOT_FOUND_PACKAGE");
+                return;
             }
-            promise.resolve(null);
-            rContext.getCurrentActivity().startActivity(intent);
-        } catch (Exception e) {
-            promise.reject(e);
-        }
+            try {
+                Intent intent = new Intent(Intent.ACTION_VIEW);
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+                    Uri apkUri = OnekeyFileProvider.getUriForFile(rContext, file);
+                    intent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+                    intent.setDataAndType(apkUri, "application/vnd.android.package-archive");
+                } else {
+                    intent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+                    intent.setDataAndType(Uri.fromFile(file), "application/vnd.android.package-archive");
+                }
+                promise.resolve(null);
+                rContext.getCurrentActivity().startActivity(intent);
+            } catch (Exception e) {
+                promise.reject(e);
+            }
+        });
     }
 }
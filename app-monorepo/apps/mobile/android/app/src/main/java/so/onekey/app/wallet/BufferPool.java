@@ -0,0 +1,39 @@
+package so.onekey.app.wallet;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Process-wide pool of the large direct buffers used by the download write path, so parallel
+ * segments and repeated downloads do not allocate (and leave to the GC) a new block each time.
+ */
+public class BufferPool {
+    public static final int BLOCK_SIZE = 1024 * 1024;
+    private static final int MAX_POOLED = 8;
+
+    private static final ConcurrentLinkedQueue<ByteBuffer> pool = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger pooled = new AtomicInteger();
+
+    public static ByteBuffer acquire() {
+        ByteBuffer buffer = pool.poll();
+        if (buffer == null) {
+            // Direct, so FileChannel writes go straight to the kernel without a temporary copy.
+            return ByteBuffer.allocateDirect(BLOCK_SIZE);
+        }
+        pooled.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    public static void release(ByteBuffer buffer) {
+        if (buffer.capacity() != BLOCK_SIZE) {
+            return;
+        }
+        if (pooled.incrementAndGet() <= MAX_POOLED) {
+            pool.offer(buffer);
+        } else {
+            pooled.decrementAndGet();
+        }
+    }
+}
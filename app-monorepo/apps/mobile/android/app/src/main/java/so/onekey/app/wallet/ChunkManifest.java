@@ -0,0 +1,234 @@
+package so.onekey.app.wallet;
+
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Optional per-chunk digests of an update artifact, clear-signed with the release key and
+ * published next to its SHA256SUMS as "<url>.SHA256CHUNKS.asc". The signed body is
+ *
+ * <pre>
+ * chunk_size 4194304
+ * length 104857600
+ * sha256 &lt;digest of the whole file, the one in SHA256SUMS&gt;
+ * &lt;digest of chunk 0&gt;
+ * &lt;digest of chunk 1&gt;
+ * ...
+ * </pre>
+ *
+ * The chunk digests are the leaves of a one-level hash tree whose root ({@link #root}) is the
+ * SHA-256 of the leaves in order. Since each leaf covers a fixed range, chunks can be checked on
+ * all cores at once, and a chunk that does not match can be fetched again on its own with a range
+ * request. The whole-file digest ties the manifest to the SHA256SUMS entry, so a file whose chunks
+ * all match is the file SHA256SUMS signed.
+ *
+ * Like {@link SignedSums}, verified manifests are cached by the SHA-256 of the signed file, so
+ * repairing and then verifying a download checks the signature once.
+ */
+public class ChunkManifest {
+    public static final String SUFFIX = ".SHA256CHUNKS.asc";
+    // a chunk is held in memory while it is re-fetched
+    private static final long MAX_CHUNK_SIZE = 64L * 1024 * 1024;
+    private static final int CACHE_SIZE = 4;
+    private static final Map<String, ChunkManifest> CACHE = new LinkedHashMap<String, ChunkManifest>(8, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ChunkManifest> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    public final long chunkSize;
+    public final long length;
+    public final String sha256;
+    public final String root;
+    private final String[] chunks;
+
+    ChunkManifest(long chunkSize, long length, String sha256, String[] chunks) throws IOException {
+        this.chunkSize = chunkSize;
+        this.length = length;
+        this.sha256 = sha256;
+        this.chunks = chunks;
+        try {
+            MessageDigest tree = Digests.newSha256();
+            for (String chunk : chunks) {
+                tree.update(fromHex(chunk));
+            }
+            this.root = Digests.toHex(tree.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    public static File manifestFile(File target) {
+        return new File(target.getAbsolutePath() + SUFFIX);
+    }
+
+    /**
+     * The manifest stored next to target, or null when there is none or its signature does not
+     * verify.
+     */
+    @Nullable
+    public static ChunkManifest load(File target) {
+        File file = manifestFile(target);
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            byte[] content = Verification.readSignedFile(file);
+            String key = Digests.toHex(Digests.newSha256().digest(content));
+            synchronized (CACHE) {
+                ChunkManifest cached = CACHE.get(key);
+                if (cached != null) {
+                    return cached;
+                }
+            }
+            String body = Verification.verifiedContent(content);
+            if (body == null) {
+                return null;
+            }
+            ChunkManifest manifest = parse(body);
+            synchronized (CACHE) {
+                CACHE.put(key, manifest);
+            }
+            return manifest;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    static ChunkManifest parse(String body) throws IOException {
+        long chunkSize = -1;
+        long length = -1;
+        String sha256 = null;
+        List<String> chunks = new ArrayList<>();
+        for (String line : body.split("\n")) {
+            String[] parts = line.trim().split("\\s+");
+            if (parts.length == 1 && parts[0].isEmpty()) {
+                continue;
+            }
+            try {
+                if (parts.length == 2 && "chunk_size".equals(parts[0])) {
+                    chunkSize = Long.parseLong(parts[1]);
+                } else if (parts.length == 2 && "length".equals(parts[0])) {
+                    length = Long.parseLong(parts[1]);
+                } else if (parts.length == 2 && "sha256".equals(parts[0]) && isSha256(parts[1])) {
+                    sha256 = parts[1].toLowerCase();
+                } else if (parts.length == 1 && isSha256(parts[0])) {
+                    chunks.add(parts[0].toLowerCase());
+                } else {
+                    throw new IOException("bad chunk manifest line: " + line);
+                }
+            } catch (NumberFormatException e) {
+                throw new IOException("bad chunk manifest line: " + line);
+            }
+        }
+        if (chunkSize <= 0 || chunkSize > MAX_CHUNK_SIZE || length < 0 || sha256 == null
+                || chunks.size() != (length + chunkSize - 1) / chunkSize) {
+            throw new IOException("incomplete chunk manifest");
+        }
+        return new ChunkManifest(chunkSize, length, sha256, chunks.toArray(new String[0]));
+    }
+
+    public int chunkCount() {
+        return chunks.length;
+    }
+
+    public long chunkStart(int index) {
+        return index * chunkSize;
+    }
+
+    public int chunkLength(int index) {
+        return (int) Math.min(chunkSize, length - chunkStart(index));
+    }
+
+    public boolean matches(int index, ByteBuffer data) throws NoSuchAlgorithmException {
+        MessageDigest digest = Digests.newSha256();
+        digest.update(data);
+        return chunks[index].equals(Digests.toHex(digest.digest()));
+    }
+
+    /**
+     * Hashes every chunk of file on executor and returns the indices of those that do not match,
+     * in order. A file of the wrong length has no chunk that can be trusted.
+     */
+    public List<Integer> mismatches(File file, ExecutorService executor) throws IOException, InterruptedException {
+        return mismatches(file, executor, null);
+    }
+
+    /**
+     * Same, reporting progress as chunks are checked.
+     */
+    public List<Integer> mismatches(File file, ExecutorService executor, @Nullable Digests.Progress progress)
+            throws IOException, InterruptedException {
+        List<Integer> result = new ArrayList<>();
+        if (file.length() != length) {
+            for (int i = 0; i < chunks.length; i++) {
+                result.add(i);
+            }
+            return result;
+        }
+        try (FileInputStream fis = new FileInputStream(file); FileChannel channel = fis.getChannel()) {
+            List<Future<Boolean>> checks = new ArrayList<>(chunks.length);
+            for (int i = 0; i < chunks.length; i++) {
+                final int index = i;
+                // positional maps, the tasks share the channel
+                checks.add(executor.submit(() -> matches(index,
+                        channel.map(FileChannel.MapMode.READ_ONLY, chunkStart(index), chunkLength(index)))));
+            }
+            try {
+                long checked = 0;
+                for (int i = 0; i < checks.size(); i++) {
+                    if (!checks.get(i).get()) {
+                        result.add(i);
+                    }
+                    checked += chunkLength(i);
+                    if (progress != null) {
+                        progress.onProgress(checked, length);
+                    }
+                }
+            } catch (ExecutionException e) {
+                throw new IOException(e.getCause());
+            } finally {
+                for (Future<Boolean> check : checks) {
+                    check.cancel(true);
+                }
+            }
+        }
+        return result;
+    }
+
+    private static boolean isSha256(String value) {
+        if (value.length() != 64) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            if (Character.digit(value.charAt(i), 16) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte[] fromHex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Character.digit(hex.charAt(i * 2), 16);
+            bytes[i] = (byte) ((bytes[i] << 4) | Character.digit(hex.charAt(i * 2 + 1), 16));
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,115 @@
+package so.onekey.app.wallet;
+
+import androidx.annotation.Nullable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
+
+/**
+ * Collects network reads in a pooled buffer and writes them to the file in large blocks aligned
+ * to {@link #ALIGNMENT}, instead of one small write per network read.
+ *
+ * Writes are positional, so the same writer serves both a whole-file download and one segment
+ * of a segmented download. The block size follows the measured throughput (see {@link #adapt}).
+ * When a digest is given it is fed with each block as it is written.
+ */
+public class CoalescingFileWriter implements Closeable {
+    public static final int ALIGNMENT = 64 * 1024;
+    private static final int DEFAULT_BLOCK_SIZE = 256 * 1024;
+
+    private final FileChannel channel;
+    @Nullable private final MessageDigest digest;
+    private final ByteBuffer buffer;
+    // file offset the buffered bytes will be written at
+    private long position;
+    private int blockSize = DEFAULT_BLOCK_SIZE;
+    private boolean closed = false;
+
+    public CoalescingFileWriter(FileChannel channel, long position, @Nullable MessageDigest digest) {
+        this.channel = channel;
+        this.position = position;
+        this.digest = digest;
+        this.buffer = BufferPool.acquire();
+        resetBuffer();
+    }
+
+    private void resetBuffer() {
+        buffer.clear();
+        // A resumed download may start mid-block, the first block is shortened to realign.
+        buffer.limit(blockSize - (int) (position % ALIGNMENT));
+    }
+
+    /**
+     * Sizes the next blocks for roughly four disk writes per second at the given throughput.
+     */
+    public void adapt(long bytesPerSecond) {
+        long target = bytesPerSecond / 4 / ALIGNMENT * ALIGNMENT;
+        blockSize = (int) Math.max(ALIGNMENT, Math.min(BufferPool.BLOCK_SIZE, target));
+    }
+
+    /**
+     * Reads at most maxBytes from source. Returns the number of bytes read, or -1 at the end of
+     * the source.
+     */
+    public int readFrom(ReadableByteChannel source, long maxBytes) throws IOException {
+        if (!buffer.hasRemaining()) {
+            flush();
+        }
+        int limit = buffer.limit();
+        if (buffer.remaining() > maxBytes) {
+            buffer.limit(buffer.position() + (int) maxBytes);
+        }
+        int read = source.read(buffer);
+        buffer.limit(limit);
+        if (read > 0 && !buffer.hasRemaining()) {
+            flush();
+        }
+        return read;
+    }
+
+    public int readFrom(ReadableByteChannel source) throws IOException {
+        return readFrom(source, Long.MAX_VALUE);
+    }
+
+    public void flush() throws IOException {
+        buffer.flip();
+        if (digest != null) {
+            digest.update(buffer.duplicate());
+        }
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+        resetBuffer();
+    }
+
+    /**
+     * Offset up to which the file has been written.
+     */
+    public long position() {
+        return position;
+    }
+
+    /**
+     * Offset up to which data has been received, including what is still buffered.
+     */
+    public long end() {
+        return position + buffer.position();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            flush();
+        } finally {
+            BufferPool.release(buffer);
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package so.onekey.app.wallet;
+
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
+import java.security.Security;
+
+/**
+ * SHA-256 helpers of the update path. Kept free of Android types so the benchmark module can
+ * compile and run them on a plain JVM.
+ *
+ * Files are hashed through read-only mappings, so a native-backed digest (Conscrypt on Android)
+ * reads the page cache directly instead of going through a copy buffer. Which provider is used is
+ * measured once by {@link #selectProvider()} rather than left to provider order.
+ */
+public class Digests {
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    // bytes mapped at a time, bounds the address space a single hash holds on to
+    private static final long MAP_WINDOW = 32L * 1024 * 1024;
+    // BouncyCastle is registered for PGP only, its pure-Java SHA-256 is never picked
+    private static final String EXCLUDED_PROVIDER = "BC";
+
+    @Nullable private static volatile Provider provider;
+
+    /**
+     * Told how far a hash got, after each mapped window or chunk.
+     */
+    public interface Progress {
+        void onProgress(long hashed, long total);
+    }
+
+    public static String toHex(byte[] bytes) {
+        char[] result = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            result[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+            result[i * 2 + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(result);
+    }
+
+    /**
+     * Times every registered SHA-256 implementation on a small sample and keeps the fastest for
+     * {@link #newSha256()}. Takes a few milliseconds, meant to run once off the main thread.
+     * Returns the chosen provider's name.
+     */
+    public static String selectProvider() {
+        byte[] sample = new byte[1024 * 1024];
+        Provider fastest = null;
+        long fastestNanos = Long.MAX_VALUE;
+        Provider[] candidates = Security.getProviders("MessageDigest.SHA-256");
+        if (candidates != null) {
+            for (Provider candidate : candidates) {
+                if (EXCLUDED_PROVIDER.equals(candidate.getName())) {
+                    continue;
+                }
+                try {
+                    MessageDigest digest = MessageDigest.getInstance("SHA-256", candidate);
+                    // warm up, then measure
+                    digest.update(sample);
+                    digest.digest();
+                    long start = System.nanoTime();
+                    for (int i = 0; i < 4; i++) {
+                        digest.update(sample);
+                    }
+                    digest.digest();
+                    long nanos = System.nanoTime() - start;
+                    if (nanos < fastestNanos) {
+                        fastestNanos = nanos;
+                        fastest = candidate;
+                    }
+                } catch (NoSuchAlgorithmException ignored) {
+                }
+            }
+        }
+        provider = fastest;
+        return fastest != null ? fastest.getName() : "default";
+    }
+
+    /**
+     * SHA-256 from the provider {@link #selectProvider()} chose, or until it has run, from the
+     * first provider in order other than BouncyCastle, which Verification puts at the top.
+     */
+    public static MessageDigest newSha256() throws NoSuchAlgorithmException {
+        Provider selected = provider;
+        if (selected != null) {
+            return MessageDigest.getInstance("SHA-256", selected);
+        }
+        Provider[] candidates = Security.getProviders("MessageDigest.SHA-256");
+        if (candidates != null) {
+            for (Provider candidate : candidates) {
+                if (!EXCLUDED_PROVIDER.equals(candidate.getName())) {
+                    return MessageDigest.getInstance("SHA-256", candidate);
+                }
+            }
+        }
+        return MessageDigest.getInstance("SHA-256");
+    }
+
+    /**
+     * A SHA-256 digest fed with the first length bytes of file, for the caller to finish or to
+     * keep updating.
+     */
+    public static MessageDigest digestOf(File file, long length) throws IOException, NoSuchAlgorithmException {
+        return digestOf(file, length, null);
+    }
+
+    /**
+     * Same, reporting progress after every window. An interrupted thread stops at the next window
+     * with InterruptedIOException.
+     */
+    public static MessageDigest digestOf(File file, long length, @Nullable Progress progress)
+            throws IOException, NoSuchAlgorithmException {
+        MessageDigest digest = newSha256();
+        try (FileInputStream fis = new FileInputStream(file); FileChannel channel = fis.getChannel()) {
+            long end = Math.min(length, channel.size());
+            for (long position = 0; position < end; position += MAP_WINDOW) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedIOException("hashing interrupted");
+                }
+                long size = Math.min(MAP_WINDOW, end - position);
+                MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+                digest.update(window);
+                if (progress != null) {
+                    progress.onProgress(position + size, end);
+                }
+            }
+        }
+        return digest;
+    }
+}
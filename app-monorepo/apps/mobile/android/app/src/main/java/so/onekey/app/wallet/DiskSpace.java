@@ -0,0 +1,57 @@
+package so.onekey.app.wallet;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Space checks and pre-allocation for update downloads, so a nearly full device fails before the
+ * transfer instead of with ENOSPC somewhere in the middle of it.
+ */
+public class DiskSpace {
+    // left free on top of the download and the installer's copy of it
+    public static final long MIN_HEADROOM = 50L * 1024 * 1024;
+
+    /**
+     * Throws NOT_ENOUGH_SPACE unless the target's filesystem can take the rest of a contentLength
+     * download plus the package installer's copy of it. Unknown lengths are not checked.
+     */
+    public static void ensure(File target, long contentLength) throws IOException {
+        if (contentLength <= 0) {
+            return;
+        }
+        File dir = target.getAbsoluteFile().getParentFile();
+        if (dir == null) {
+            return;
+        }
+        long allocated = target.exists() ? Math.min(target.length(), contentLength) : 0;
+        long needed = (contentLength - allocated) + contentLength + MIN_HEADROOM;
+        long usable = dir.getUsableSpace();
+        if (usable < needed) {
+            throw new IOException("NOT_ENOUGH_SPACE");
+        }
+    }
+
+    /**
+     * Reserves length bytes for the file in one go (fewer extents than growing it write by write,
+     * which also makes the hash pass afterwards cheaper). Falls back to setLength, which only sets
+     * the size, where the filesystem cannot allocate ahead.
+     */
+    public static void preallocate(RandomAccessFile file, long length) throws IOException {
+        if (length <= 0 || file.length() >= length) {
+            return;
+        }
+        try {
+            Os.posix_fallocate(file.getFD(), 0, length);
+        } catch (ErrnoException e) {
+            if (e.errno == OsConstants.ENOSPC) {
+                throw new IOException("NOT_ENOUGH_SPACE", e);
+            }
+            file.setLength(length);
+        }
+    }
+}
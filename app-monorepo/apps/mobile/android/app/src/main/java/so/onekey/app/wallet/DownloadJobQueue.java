@@ -0,0 +1,252 @@
+package so.onekey.app.wallet;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.NetworkCapabilities;
+import android.os.BatteryManager;
+
+import androidx.annotation.Nullable;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Update downloads that have been requested but not finished yet, persisted in the app's files
+ * dir so they can be picked up again after the process is killed.
+ *
+ * The bytes already on disk are tracked by {@link DownloadState}; the queue only remembers what
+ * to fetch, where to, and under which conditions it may run.
+ */
+public class DownloadJobQueue {
+    private static final String FILE_NAME = "auto_update_jobs.json";
+    // a job that keeps failing waits 30s, 1m, 2m... up to 30m, and is dropped after MAX_FAILURES
+    private static final long RETRY_BASE_MS = 30_000;
+    private static final long RETRY_MAX_MS = 30 * 60_000;
+    private static final int MAX_FAILURES = 8;
+
+    // what the device offers, as compared against a job's constraints
+    public static final int CONNECTED = 1;
+    public static final int UNMETERED = 1 << 1;
+    public static final int CHARGING = 1 << 2;
+
+    public static class Job {
+        public final String url;
+        public final String filePath;
+        public final String notificationTitle;
+        public final int connections;
+        public final boolean unmeteredOnly;
+        public final boolean chargingOnly;
+        // alternatives to url serving the same file, in order of preference
+        public final List<String> mirrors;
+        // bytes on disk when the job last stopped, for reporting only
+        public long offset;
+        // failed attempts in a row, and the wall clock time before which it is not tried again
+        public int failures;
+        public long retryAt;
+
+        public Job(String url, String filePath, String notificationTitle, int connections,
+                   boolean unmeteredOnly, boolean chargingOnly, List<String> mirrors) {
+            this.url = url;
+            this.filePath = filePath;
+            this.notificationTitle = notificationTitle;
+            this.connections = connections;
+            this.unmeteredOnly = unmeteredOnly;
+            this.chargingOnly = chargingOnly;
+            this.mirrors = mirrors;
+        }
+
+        /**
+         * url followed by the mirrors, without duplicates.
+         */
+        public List<String> urls() {
+            List<String> urls = new ArrayList<>();
+            urls.add(url);
+            for (String mirror : mirrors) {
+                if (!urls.contains(mirror)) {
+                    urls.add(mirror);
+                }
+            }
+            return urls;
+        }
+
+        JSONObject toJson() throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put("url", url);
+            json.put("filePath", filePath);
+            json.put("notificationTitle", notificationTitle);
+            json.put("connections", connections);
+            json.put("unmeteredOnly", unmeteredOnly);
+            json.put("chargingOnly", chargingOnly);
+            json.put("offset", offset);
+            json.put("failures", failures);
+            json.put("retryAt", retryAt);
+            json.put("mirrors", new JSONArray(mirrors));
+            return json;
+        }
+
+        static Job fromJson(JSONObject json) throws JSONException {
+            List<String> mirrors = new ArrayList<>();
+            JSONArray array = json.optJSONArray("mirrors");
+            if (array != null) {
+                for (int i = 0; i < array.length(); i++) {
+                    mirrors.add(array.getString(i));
+                }
+            }
+            Job job = new Job(
+                    json.getString("url"),
+                    json.getString("filePath"),
+                    json.optString("notificationTitle", ""),
+                    json.optInt("connections", 1),
+                    json.optBoolean("unmeteredOnly", false),
+                    json.optBoolean("chargingOnly", false),
+                    mirrors);
+            job.offset = json.optLong("offset", 0);
+            job.failures = json.optInt("failures", 0);
+            job.retryAt = json.optLong("retryAt", 0);
+            return job;
+        }
+    }
+
+    private final File file;
+    // keyed by filePath, in the order the jobs were requested
+    private final LinkedHashMap<String, Job> jobs = new LinkedHashMap<>();
+
+    public DownloadJobQueue(Context context) {
+        file = new File(context.getFilesDir(), FILE_NAME);
+        load();
+    }
+
+    private void load() {
+        if (!file.exists()) {
+            return;
+        }
+        try (FileInputStream fis = new FileInputStream(file)) {
+            byte[] bytes = new byte[(int) file.length()];
+            int read = 0;
+            while (read < bytes.length) {
+                int count = fis.read(bytes, read, bytes.length - read);
+                if (count < 0) {
+                    break;
+                }
+                read += count;
+            }
+            JSONArray array = new JSONArray(new String(bytes, 0, read, StandardCharsets.UTF_8));
+            for (int i = 0; i < array.length(); i++) {
+                Job job = Job.fromJson(array.getJSONObject(i));
+                jobs.put(job.filePath, job);
+            }
+        } catch (IOException | JSONException e) {
+            jobs.clear();
+        }
+    }
+
+    private void persist() {
+        try {
+            JSONArray array = new JSONArray();
+            for (Job job : jobs.values()) {
+                array.put(job.toJson());
+            }
+            File temp = new File(file.getAbsolutePath() + ".tmp");
+            try (FileOutputStream fos = new FileOutputStream(temp)) {
+                fos.write(array.toString().getBytes(StandardCharsets.UTF_8));
+                fos.getFD().sync();
+            }
+            temp.renameTo(file);
+        } catch (IOException | JSONException ignored) {
+        }
+    }
+
+    public synchronized void put(Job job) {
+        jobs.put(job.filePath, job);
+        persist();
+    }
+
+    public synchronized void remove(String filePath) {
+        if (jobs.remove(filePath) != null) {
+            persist();
+        }
+    }
+
+    public synchronized void updateOffset(String filePath, long offset) {
+        Job job = jobs.get(filePath);
+        if (job != null) {
+            job.offset = offset;
+            persist();
+        }
+    }
+
+    /**
+     * Records a failed attempt of the job at filePath and returns when it may be tried again, or
+     * 0 when it was dropped after {@link #MAX_FAILURES} or is not queued.
+     */
+    public synchronized long fail(String filePath) {
+        Job job = jobs.get(filePath);
+        if (job == null) {
+            return 0;
+        }
+        job.failures++;
+        if (job.failures >= MAX_FAILURES) {
+            jobs.remove(filePath);
+            persist();
+            return 0;
+        }
+        long delay = Math.min(RETRY_BASE_MS << Math.min(job.failures - 1, 16), RETRY_MAX_MS);
+        job.retryAt = System.currentTimeMillis() + delay;
+        persist();
+        return job.retryAt;
+    }
+
+    public synchronized List<Job> pending() {
+        return new ArrayList<>(jobs.values());
+    }
+
+    public synchronized void clear() {
+        jobs.clear();
+        persist();
+    }
+
+    public static boolean constraintsMet(int conditions, Job job) {
+        return (!job.unmeteredOnly || (conditions & UNMETERED) != 0)
+                && (!job.chargingOnly || (conditions & CHARGING) != 0);
+    }
+
+    /**
+     * The {@link #CONNECTED} and {@link #UNMETERED} flags of a network, 0 for none.
+     */
+    public static int networkConditions(@Nullable NetworkCapabilities capabilities) {
+        int conditions = 0;
+        if (capabilities != null && capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)
+                && capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_VALIDATED)) {
+            conditions |= CONNECTED;
+            if (capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_NOT_METERED)) {
+                conditions |= UNMETERED;
+            }
+        }
+        return conditions;
+    }
+
+    /**
+     * The {@link #CONNECTED}, {@link #UNMETERED} and {@link #CHARGING} flags that hold right now.
+     * This queries system services, callers that check often keep the result and update it from
+     * the network callback and the power broadcasts instead.
+     */
+    public static int conditions(Context context) {
+        ConnectivityManager cm = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        int conditions = cm == null ? 0 : networkConditions(cm.getNetworkCapabilities(cm.getActiveNetwork()));
+        BatteryManager battery = (BatteryManager) context.getSystemService(Context.BATTERY_SERVICE);
+        if (battery != null && battery.isCharging()) {
+            conditions |= CHARGING;
+        }
+        return conditions;
+    }
+}
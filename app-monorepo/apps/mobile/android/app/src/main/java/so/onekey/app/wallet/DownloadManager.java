@@ -0,0 +1,245 @@
+package so.onekey.app.wallet;
+
+import android.os.Process;
+
+import androidx.annotation.Nullable;
+
+import com.facebook.react.bridge.Promise;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.Call;
+
+/**
+ * In-flight update transfers, keyed by destination path. Transfers to different paths run
+ * concurrently; a request for a path that is already being fetched from the same url joins the
+ * running transfer, so every caller's promise is settled when it ends.
+ *
+ * Cancelling a transfer cancels its current HTTP call, which fails a blocked read right away, and
+ * interrupts its thread. The task is expected to check {@link Transfer#isCancelled()} between reads.
+ * A transfer cancelled before its task started never runs the task, but is still unregistered.
+ *
+ * A transfer stays registered until its task has returned, not just until its promises are
+ * settled: the task may still be flushing the file and saving its state. A new transfer for the
+ * same key starts its task only after the previous one has exited, so one file never has two
+ * writers.
+ */
+public class DownloadManager {
+    private final ExecutorService executor = Executors.newCachedThreadPool(backgroundThreads("update-download"));
+    private final Map<String, Transfer> transfers = new HashMap<>();
+
+    public static class Transfer {
+        public final String key;
+        public final String url;
+        private final List<Promise> promises = new ArrayList<>();
+        private volatile boolean cancelled = false;
+        // promises settled or handed back, nothing can join any more
+        private boolean settled = false;
+        private final CountDownLatch exited = new CountDownLatch(1);
+        // the transfer for the same key still exiting when this one was registered
+        @Nullable private Transfer previous;
+        @Nullable private Call call;
+        // the thread running the task, while it runs
+        @Nullable private Thread thread;
+
+        Transfer(String key, String url) {
+            this.key = key;
+            this.url = url;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        /**
+         * The call currently feeding the transfer, cancelled along with it.
+         */
+        public synchronized void setCall(Call call) {
+            this.call = call;
+            if (cancelled) {
+                call.cancel();
+            }
+        }
+
+        synchronized void cancel() {
+            cancelled = true;
+            if (call != null) {
+                call.cancel();
+            }
+            if (thread != null) {
+                thread.interrupt();
+            }
+        }
+    }
+
+    /**
+     * Daemon threads at background priority, so transfers do not compete with the UI and the
+     * wallet's own network calls for CPU.
+     */
+    public static ThreadFactory backgroundThreads(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(() -> {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                runnable.run();
+            }, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Registers a transfer for key and returns it, or returns null after attaching the promises to
+     * the transfer already running for key. A running transfer of a different url rejects them
+     * with DOWNLOAD_IN_PROGRESS. A transfer that is only exiting is not joined, the new one waits
+     * for it instead.
+     */
+    @Nullable
+    public synchronized Transfer register(String key, String url, List<Promise> promises) {
+        Transfer existing = transfers.get(key);
+        if (existing != null && !existing.settled && !existing.cancelled) {
+            if (existing.url.equals(url)) {
+                existing.promises.addAll(promises);
+            } else {
+                for (Promise promise : promises) {
+                    promise.reject(new Exception("DOWNLOAD_IN_PROGRESS"));
+                }
+            }
+            return null;
+        }
+        Transfer transfer = new Transfer(key, url);
+        transfer.promises.addAll(promises);
+        transfer.previous = existing;
+        transfers.put(key, transfer);
+        return transfer;
+    }
+
+    /**
+     * Runs task for a registered transfer once the previous transfer for its key has exited.
+     * Promises the task leaves unsettled are rejected with DOWNLOAD_ABORTED once it returns.
+     */
+    public void submit(Transfer transfer, Runnable task) {
+        try {
+            executor.execute(() -> run(transfer, task));
+        } catch (RejectedExecutionException e) {
+            // shut down
+            exit(transfer);
+        }
+    }
+
+    private void run(Transfer transfer, Runnable task) {
+        try {
+            synchronized (transfer) {
+                if (transfer.cancelled) {
+                    return;
+                }
+                transfer.thread = Thread.currentThread();
+            }
+            Transfer previous = transfer.previous;
+            if (previous != null) {
+                previous.exited.await();
+                transfer.previous = null;
+            }
+            task.run();
+        } catch (InterruptedException e) {
+            // cancelled while the previous transfer was exiting
+        } finally {
+            synchronized (transfer) {
+                transfer.thread = null;
+            }
+            // a cancel that came in as the task returned must not carry over to the pooled thread
+            Thread.interrupted();
+            // a transfer cancelled while waiting is not done before the one it waited for
+            Transfer previous = transfer.previous;
+            if (previous != null) {
+                awaitUninterruptibly(previous.exited);
+                transfer.previous = null;
+            }
+            exit(transfer);
+        }
+    }
+
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        while (true) {
+            try {
+                latch.await();
+                return;
+            } catch (InterruptedException e) {
+                // only the pool's shutdown interrupts here, it checks its own state afterwards
+            }
+        }
+    }
+
+    private void exit(Transfer transfer) {
+        reject(transfer, new Exception("DOWNLOAD_ABORTED"));
+        synchronized (this) {
+            if (transfers.get(transfer.key) == transfer) {
+                transfers.remove(transfer.key);
+            }
+        }
+        transfer.exited.countDown();
+    }
+
+    /**
+     * The background threads transfers run on, for the work a transfer fans out, such as racing
+     * mirrors.
+     */
+    public ExecutorService executor() {
+        return executor;
+    }
+
+    public synchronized boolean isActive(String key) {
+        return transfers.containsKey(key);
+    }
+
+    public void resolve(Transfer transfer, @Nullable Object value) {
+        for (Promise promise : detach(transfer)) {
+            promise.resolve(value);
+        }
+    }
+
+    public void reject(Transfer transfer, Exception e) {
+        for (Promise promise : detach(transfer)) {
+            promise.reject(e);
+        }
+    }
+
+    /**
+     * Ends the transfer without settling its promises and hands them back, e.g. to park them
+     * while a paused job waits for its constraints. It stays registered until its task returns.
+     */
+    public synchronized List<Promise> detach(Transfer transfer) {
+        transfer.settled = true;
+        List<Promise> promises = new ArrayList<>(transfer.promises);
+        transfer.promises.clear();
+        return promises;
+    }
+
+    public void cancelAll() {
+        List<Transfer> cancelled;
+        synchronized (this) {
+            cancelled = new ArrayList<>(transfers.values());
+        }
+        for (Transfer transfer : cancelled) {
+            // settled first, so the exiting task does not get to reject them as aborted
+            reject(transfer, new Exception("DOWNLOAD_CANCELLED"));
+            transfer.cancel();
+        }
+    }
+
+    /**
+     * Stops the background threads for good, after {@link #cancelAll()}.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,250 @@
+package so.onekey.app.wallet;
+
+import androidx.annotation.Nullable;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Persisted state of a partially downloaded file, stored next to it as "<file>.download".
+ *
+ * Records the validator (ETag / Last-Modified) the server sent for the first byte so a retry can
+ * continue with a Range request and fall back to a full restart when the remote file changed.
+ * Segmented downloads also record how far each byte range got, and sequential downloads into a
+ * pre-allocated file record how far they got since the file's length no longer tells.
+ */
+public class DownloadState {
+    private static final String SUFFIX = ".download";
+
+    public static class Segment {
+        public final long start;
+        // inclusive
+        public final long end;
+        // next byte to fetch, only advanced by the thread that owns the segment
+        volatile long next;
+
+        Segment(long start, long end, long next) {
+            this.start = start;
+            this.end = end;
+            this.next = next;
+        }
+
+        public boolean isDone() {
+            return next > end;
+        }
+
+        public long written() {
+            return next - start;
+        }
+    }
+
+    public final String url;
+    @Nullable public final String etag;
+    @Nullable public final String lastModified;
+    public final long contentLength;
+    @Nullable public final List<Segment> segments;
+    // bytes written to a pre-allocated file, -1 when the file is only as long as what was written
+    public volatile long position = -1;
+
+    public DownloadState(String url, @Nullable String etag, @Nullable String lastModified, long contentLength) {
+        this(url, etag, lastModified, contentLength, null);
+    }
+
+    public DownloadState(String url, @Nullable String etag, @Nullable String lastModified, long contentLength,
+                         @Nullable List<Segment> segments) {
+        this.url = url;
+        this.etag = etag;
+        this.lastModified = lastModified;
+        this.contentLength = contentLength;
+        this.segments = segments;
+    }
+
+    private static File stateFile(File target) {
+        return new File(target.getAbsolutePath() + SUFFIX);
+    }
+
+    @Nullable
+    public static DownloadState load(File target) {
+        File file = stateFile(target);
+        if (!file.exists()) {
+            return null;
+        }
+        try (FileInputStream fis = new FileInputStream(file)) {
+            byte[] bytes = new byte[(int) file.length()];
+            int read = 0;
+            while (read < bytes.length) {
+                int count = fis.read(bytes, read, bytes.length - read);
+                if (count < 0) {
+                    break;
+                }
+                read += count;
+            }
+            JSONObject json = new JSONObject(new String(bytes, 0, read, StandardCharsets.UTF_8));
+            List<Segment> segments = null;
+            JSONArray array = json.optJSONArray("segments");
+            if (array != null) {
+                segments = new ArrayList<>(array.length());
+                for (int i = 0; i < array.length(); i++) {
+                    JSONArray item = array.getJSONArray(i);
+                    segments.add(new Segment(item.getLong(0), item.getLong(1), item.getLong(2)));
+                }
+            }
+            DownloadState state = new DownloadState(
+                    json.getString("url"),
+                    json.optString("etag", null),
+                    json.optString("lastModified", null),
+                    json.optLong("contentLength", -1),
+                    segments);
+            state.position = json.optLong("position", -1);
+            return state;
+        } catch (IOException | JSONException e) {
+            return null;
+        }
+    }
+
+    public void save(File target) throws IOException {
+        save(target, null);
+    }
+
+    /**
+     * Saves the state once the bytes it counts are on disk: the positions are read first, then
+     * data is forced, then the state is written, so it never claims bytes a crash could lose.
+     */
+    public synchronized void save(File target, @Nullable FileChannel data) throws IOException {
+        JSONObject json = new JSONObject();
+        try {
+            json.put("url", url);
+            json.putOpt("etag", etag);
+            json.putOpt("lastModified", lastModified);
+            json.put("contentLength", contentLength);
+            if (position >= 0) {
+                json.put("position", position);
+            }
+            if (segments != null) {
+                JSONArray array = new JSONArray();
+                for (Segment segment : segments) {
+                    JSONArray item = new JSONArray();
+                    item.put(segment.start);
+                    item.put(segment.end);
+                    item.put(segment.next);
+                    array.put(item);
+                }
+                json.put("segments", array);
+            }
+        } catch (JSONException e) {
+            throw new IOException(e);
+        }
+        if (data != null) {
+            data.force(false);
+        }
+        try (FileOutputStream fos = new FileOutputStream(stateFile(target))) {
+            fos.write(json.toString().getBytes(StandardCharsets.UTF_8));
+            fos.getFD().sync();
+        }
+    }
+
+    public static void clear(File target) {
+        File file = stateFile(target);
+        if (file.exists()) {
+            file.delete();
+        }
+    }
+
+    /**
+     * The value to send as If-Range. Weak ETags are not allowed there (RFC 9110 13.1.5), so those
+     * fall back to Last-Modified.
+     */
+    @Nullable
+    public String validator() {
+        if (etag != null && !etag.startsWith("W/")) {
+            return etag;
+        }
+        return lastModified;
+    }
+
+    public boolean canResume(String requestUrl, File target) {
+        if (!url.equals(requestUrl) || validator() == null || !target.exists()) {
+            return false;
+        }
+        if (segments != null) {
+            return true;
+        }
+        if (position >= 0) {
+            return position > 0 && position < contentLength && target.length() >= position;
+        }
+        return target.length() > 0 && (contentLength < 0 || target.length() < contentLength);
+    }
+
+    /**
+     * Where a sequential download continues.
+     */
+    public long resumeOffset(File target) {
+        return position >= 0 ? position : target.length();
+    }
+
+    public long downloaded() {
+        if (segments == null) {
+            return 0;
+        }
+        long total = 0;
+        for (Segment segment : segments) {
+            total += segment.written();
+        }
+        return total;
+    }
+
+    /**
+     * Whether a 206 response still describes the same remote file we started with.
+     */
+    public boolean matches(@Nullable String responseEtag, @Nullable String responseLastModified) {
+        if (etag != null && responseEtag != null) {
+            return etag.equals(responseEtag);
+        }
+        if (lastModified != null && responseLastModified != null) {
+            return lastModified.equals(responseLastModified);
+        }
+        return true;
+    }
+
+    public static long parseContentRangeStart(@Nullable String contentRange) {
+        // "bytes 1000-1999/2000"
+        if (contentRange == null || !contentRange.startsWith("bytes ")) {
+            return -1;
+        }
+        int dash = contentRange.indexOf('-');
+        if (dash < 0) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(contentRange.substring(6, dash).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    public static long parseContentRangeTotal(@Nullable String contentRange) {
+        if (contentRange == null) {
+            return -1;
+        }
+        int slash = contentRange.lastIndexOf('/');
+        if (slash < 0) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(contentRange.substring(slash + 1).trim());
+        } catch (NumberFormatException e) {
+            // "*" for an unknown length
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package so.onekey.app.wallet;
+
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * SHA-256 computed while a file was written, stored next to it as "<file>.sha256".
+ *
+ * The size and mtime of the file are saved with the digest so a file modified afterwards is
+ * hashed again instead of trusting a stale value.
+ */
+public class FileDigest {
+    private static final String SUFFIX = ".sha256";
+
+    private static File digestFile(File target) {
+        return new File(target.getAbsolutePath() + SUFFIX);
+    }
+
+    public static void save(File target, String sha256) throws IOException {
+        String content = sha256 + " " + target.length() + " " + target.lastModified();
+        try (FileOutputStream fos = new FileOutputStream(digestFile(target))) {
+            fos.write(content.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    @Nullable
+    public static String load(File target) {
+        File file = digestFile(target);
+        if (!file.exists() || !target.exists()) {
+            return null;
+        }
+        try (FileInputStream fis = new FileInputStream(file)) {
+            byte[] bytes = new byte[(int) file.length()];
+            int read = fis.read(bytes);
+            String[] parts = new String(bytes, 0, Math.max(read, 0), StandardCharsets.UTF_8).trim().split(" ");
+            if (parts.length != 3
+                    || Long.parseLong(parts[1]) != target.length()
+                    || Long.parseLong(parts[2]) != target.lastModified()) {
+                return null;
+            }
+            return parts[0];
+        } catch (IOException | NumberFormatException e) {
+            return null;
+        }
+    }
+
+    public static void clear(File target) {
+        File file = digestFile(target);
+        if (file.exists()) {
+            file.delete();
+        }
+    }
+}
@@ -47,6 +47,7 @@ public class MainApplication extends Application implements ReactApplication {
         // packages.add(new GeckoViewPackage());
         packages.add(new ExitPackage());
         packages.add(new WebViewCheckerPackage());
+        packages.add(new NativeLogPackage());
         if (Build.VERSION.SDK_INT < Build.VERSION_CODES.S) {
           packages.add(new SplashScreenPackage());
         }
@@ -96,6 +97,7 @@ public class MainApplication extends Application implements ReactApplication {
   @Override
   public void onCreate() {
     super.onCreate();
+    NativeLogger.init(this);
     try {
       Field field = CursorWindow.class.getDeclaredField("sCursorWindowSize");
       field.setAccessible(true);
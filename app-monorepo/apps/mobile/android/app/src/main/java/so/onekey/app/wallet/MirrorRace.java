@@ -0,0 +1,118 @@
+package so.onekey.app.wallet;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import okhttp3.Call;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Hedged requests across mirrors of the same file: the same (ranged) request goes to several
+ * mirrors at once, the first one to deliver a body byte is kept and the others are cancelled.
+ *
+ * Mirrors are different servers, so their ETags cannot be compared; a response is accepted for
+ * a resumed range when its Content-Range starts at the requested offset and reports the expected
+ * total length. The signed SHA-256 check after the download still covers the content.
+ */
+public class MirrorRace {
+    // how many mirrors are raced at once
+    public static final int WIDTH = 3;
+    // a transfer below this rate for STALL_WINDOW_MS moves to another mirror
+    public static final long STALL_BYTES_PER_SECOND = 64 * 1024;
+    public static final long STALL_WINDOW_MS = 10_000;
+
+    public static class Winner {
+        public final String url;
+        public final Call call;
+        public final Response response;
+
+        Winner(String url, Call call, Response response) {
+            this.url = url;
+            this.call = call;
+            this.response = response;
+        }
+    }
+
+    /**
+     * Races the first {@link #WIDTH} urls on executor. With offset > 0 only 206 responses starting
+     * at offset (and of expectedTotal length, when known) are accepted.
+     */
+    public static Winner race(ExecutorService executor, OkHttpClient client, List<String> urls, long offset,
+                              long expectedTotal) throws IOException, InterruptedException {
+        int count = Math.min(WIDTH, urls.size());
+        ExecutorCompletionService<Winner> completion = new ExecutorCompletionService<>(executor);
+        AtomicBoolean decided = new AtomicBoolean(false);
+        List<Call> calls = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String url = urls.get(i);
+            Request.Builder builder = new Request.Builder().url(url);
+            if (offset > 0) {
+                builder.header("Range", "bytes=" + offset + "-");
+            }
+            Call call = client.newCall(builder.build());
+            calls.add(call);
+            completion.submit(() -> {
+                Response response = call.execute();
+                try {
+                    if (!accepts(response, offset, expectedTotal)) {
+                        throw new IOException(url + " " + response.code());
+                    }
+                    // Wait for the first body byte, not just the headers.
+                    response.body().source().request(1);
+                } catch (IOException e) {
+                    response.close();
+                    throw e;
+                }
+                if (!decided.compareAndSet(false, true)) {
+                    response.close();
+                    throw new IOException("lost race");
+                }
+                return new Winner(url, call, response);
+            });
+        }
+
+        IOException lastError = null;
+        try {
+            for (int i = 0; i < count; i++) {
+                try {
+                    Winner winner = completion.take().get();
+                    for (Call call : calls) {
+                        if (call != winner.call) {
+                            call.cancel();
+                        }
+                    }
+                    return winner;
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    lastError = cause instanceof IOException ? (IOException) cause : new IOException(cause);
+                }
+            }
+        } catch (InterruptedException e) {
+            for (Call call : calls) {
+                call.cancel();
+            }
+            throw e;
+        }
+        throw lastError != null ? lastError : new IOException("no mirror");
+    }
+
+    private static boolean accepts(Response response, long offset, long expectedTotal) {
+        if (!response.isSuccessful()) {
+            return false;
+        }
+        if (offset == 0) {
+            return response.code() == 200;
+        }
+        String contentRange = response.header("Content-Range");
+        return response.code() == 206
+                && DownloadState.parseContentRangeStart(contentRange) == offset
+                && (expectedTotal < 0 || DownloadState.parseContentRangeTotal(contentRange) == expectedTotal);
+    }
+}
@@ -0,0 +1,35 @@
+package so.onekey.app.wallet;
+
+import com.facebook.react.bridge.Promise;
+import com.facebook.react.bridge.ReactApplicationContext;
+import com.facebook.react.bridge.ReactContextBaseJavaModule;
+import com.facebook.react.bridge.ReactMethod;
+
+import java.io.File;
+
+public class NativeLogModule extends ReactContextBaseJavaModule {
+    public NativeLogModule(ReactApplicationContext context) {
+        super(context);
+    }
+
+    @Override
+    public String getName() {
+        return "NativeLogModule";
+    }
+
+    /**
+     * Renders the native logs as text into dir, next to the JS logs, before they get zipped.
+     * Resolves with the path of the rendered file.
+     */
+    @ReactMethod
+    public void exportLogs(final String dir, final Promise promise) {
+        new Thread(() -> {
+            try {
+                File output = NativeLogger.export(new File(dir.replace("file://", "")));
+                promise.resolve(output.getAbsolutePath());
+            } catch (Exception e) {
+                promise.reject(e);
+            }
+        }).start();
+    }
+}
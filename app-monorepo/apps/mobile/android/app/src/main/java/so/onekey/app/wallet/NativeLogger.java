@@ -0,0 +1,634 @@
+package so.onekey.app.wallet;
+
+import android.content.Context;
+import android.os.Process;
+
+import androidx.annotation.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.IllegalFormatException;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipException;
+
+/**
+ * The process-wide logger of the native modules.
+ *
+ * Logging only puts a record on a lock-free queue: the time, an {@link Event} and the raw
+ * arguments. A background thread drains the queue every {@link #FLUSH_INTERVAL_MS} and appends
+ * the records to a binary file in the app's cache. Nothing is formatted as text until the user
+ * exports logs, when {@link #export} renders every record with its event's template.
+ *
+ * File layout, integers are unsigned varints unless noted, strings a varint length and UTF-8:
+ * <pre>
+ * SESSION 0x01 start time ms            starts a file, resets the clock and the event table
+ * EVENT   0x02 id module name template  precedes the first record of an event in a file
+ * RECORD  0x03 time delta ms (zigzag) event id argument count arguments
+ * </pre>
+ * An argument is a tag followed by a zigzag varint (LONG), 8 bytes (DOUBLE), a string (STRING)
+ * or nothing (NULL, TRUE, FALSE).
+ *
+ * Records go to current.bin until it reaches {@link #MAX_SEGMENT_SIZE} or
+ * {@link #MAX_SEGMENT_AGE_MS}. It is then closed as "&lt;start time&gt;.bin", gzipped on a
+ * background thread into "&lt;start time&gt;.bin.gz", and the oldest segments are deleted once
+ * all of them take more than {@link #MAX_TOTAL_SIZE}. Every segment starts with a SESSION, so
+ * each one renders on its own.
+ */
+public class NativeLogger {
+    private static final long FLUSH_INTERVAL_MS = 250;
+    private static final String DIR_NAME = "native-logs";
+    private static final String FILE_NAME = "current.bin";
+    private static final String SEGMENT_SUFFIX = ".bin";
+    private static final String COMPRESSED_SUFFIX = ".bin.gz";
+    private static final String PARTIAL_SUFFIX = ".tmp";
+    // about 2.5MB of rendered text per segment
+    private static final long MAX_SEGMENT_SIZE = 512 * 1024;
+    private static final long MAX_SEGMENT_AGE_MS = 24 * 60 * 60 * 1000L;
+    // compressed segments included, the oldest are deleted beyond it
+    private static final long MAX_TOTAL_SIZE = 4 * 1024 * 1024;
+    // the file logs are rendered into, next to the JS logs
+    public static final String EXPORT_NAME = "native.log";
+
+    private static final int SESSION = 0x01;
+    private static final int EVENT = 0x02;
+    private static final int RECORD = 0x03;
+    private static final int TAG_NULL = 0;
+    private static final int TAG_LONG = 1;
+    private static final int TAG_DOUBLE = 2;
+    private static final int TAG_STRING = 3;
+    private static final int TAG_TRUE = 4;
+    private static final int TAG_FALSE = 5;
+
+    // longest string a record may hold, anything longer is a damaged file
+    private static final int MAX_STRING = 1024 * 1024;
+
+    private static final NativeLogger INSTANCE = new NativeLogger();
+
+    private final ConcurrentLinkedQueue<Record> queue = new ConcurrentLinkedQueue<>();
+    // the "%s" events of plain text lines, by module and name
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, Event>> textEvents = new ConcurrentHashMap<>();
+    private final AtomicInteger nextId = new AtomicInteger();
+    @Nullable private volatile File dir;
+    // only touched while draining
+    private final Output buffer = new Output();
+    private final BitSet defined = new BitSet();
+    @Nullable private FileOutputStream out;
+    private long lastTime;
+    // of the segment being written, to know when to close it
+    private long segmentStart;
+    private long segmentSize;
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(
+            DownloadManager.backgroundThreads("native-logger-compact"));
+
+    /**
+     * A kind of log line: where it comes from and how its arguments read, as a
+     * {@link String#format} template.
+     */
+    public static final class Event {
+        final int id;
+        final String module;
+        final String name;
+        final String template;
+
+        Event(int id, String module, String name, String template) {
+            this.id = id;
+            this.module = module;
+            this.name = name;
+            this.template = template;
+        }
+    }
+
+    private static class Record {
+        final long time;
+        final Event event;
+        final Object[] args;
+
+        Record(long time, Event event, Object[] args) {
+            this.time = time;
+            this.event = event;
+            this.args = args;
+        }
+    }
+
+    /**
+     * Where a file stops making sense, read like its end.
+     */
+    private static class DamagedException extends EOFException {
+        DamagedException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Exposes its buffer so a batch goes to the file in one write.
+     */
+    private static class Output extends ByteArrayOutputStream {
+        void writeVarint(long value) {
+            while ((value & ~0x7fL) != 0) {
+                write((int) ((value & 0x7f) | 0x80));
+                value >>>= 7;
+            }
+            write((int) value);
+        }
+
+        void writeString(String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarint(bytes.length);
+            write(bytes, 0, bytes.length);
+        }
+
+        void writeTo(FileOutputStream out) throws IOException {
+            out.write(buf, 0, count);
+        }
+    }
+
+    /**
+     * Starts writing to the app's cache; records logged before are kept until then. Called once
+     * from Application.onCreate.
+     */
+    public static void init(Context context) {
+        if (INSTANCE.dir != null) {
+            return;
+        }
+        File dir = new File(context.getCacheDir(), DIR_NAME);
+        dir.mkdirs();
+        INSTANCE.dir = dir;
+        Thread writer = new Thread(() -> {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            while (true) {
+                INSTANCE.drain();
+                LockSupport.parkNanos(FLUSH_INTERVAL_MS * 1_000_000L);
+            }
+        }, "native-logger");
+        writer.setDaemon(true);
+        writer.start();
+        // segments closed but not compressed when the process last died
+        INSTANCE.compactor.execute(INSTANCE::compact);
+    }
+
+    /**
+     * A new event, meant to be kept in a static field by the module that logs it.
+     */
+    public static Event event(@Nullable String module, String name, String template) {
+        return new Event(INSTANCE.nextId.getAndIncrement(), module != null ? module : "", name, template);
+    }
+
+    private static Event textEvent(@Nullable String module, String name) {
+        String moduleKey = module != null ? module : "";
+        ConcurrentHashMap<String, Event> byName = INSTANCE.textEvents.get(moduleKey);
+        if (byName == null) {
+            byName = new ConcurrentHashMap<>();
+            ConcurrentHashMap<String, Event> raced = INSTANCE.textEvents.putIfAbsent(moduleKey, byName);
+            if (raced != null) {
+                byName = raced;
+            }
+        }
+        Event event = byName.get(name);
+        if (event == null) {
+            event = event(module, name, "%s");
+            Event raced = byName.putIfAbsent(name, event);
+            if (raced != null) {
+                event = raced;
+            }
+        }
+        return event;
+    }
+
+    /**
+     * Logs event with its arguments, formatted only on export. Numbers, booleans and strings are
+     * stored as they are; anything else is stored as its toString() on the writer thread.
+     */
+    public static void log(Event event, Object... args) {
+        INSTANCE.queue.offer(new Record(System.currentTimeMillis(), event, args));
+    }
+
+    /**
+     * Logs "module:name: msg", or "name: msg" without a module.
+     */
+    public static void log(@Nullable String module, String name, String msg) {
+        log(textEvent(module, name), msg);
+    }
+
+    /**
+     * Writes everything logged so far before returning, e.g. right before the process is killed.
+     */
+    public static void flush() {
+        INSTANCE.drain();
+    }
+
+    /**
+     * Renders every stored record as a text line into dir/{@link #EXPORT_NAME} and returns the
+     * file, for the logs export to pick up. Segments are rendered oldest first.
+     */
+    public static File export(File dir) throws IOException {
+        File output = new File(dir, EXPORT_NAME);
+        synchronized (INSTANCE) {
+            INSTANCE.drain();
+            List<File> sources = INSTANCE.closedSegments();
+            File current = INSTANCE.file();
+            if (current != null && current.exists()) {
+                sources.add(current);
+            }
+            try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(output),
+                    StandardCharsets.UTF_8))) {
+                for (File source : sources) {
+                    try (InputStream in = open(source)) {
+                        render(in, writer);
+                    } catch (ZipException ignored) {
+                        // a damaged segment, the others still render
+                    }
+                }
+            }
+        }
+        return output;
+    }
+
+    private static InputStream open(File source) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(source));
+        if (!source.getName().endsWith(COMPRESSED_SUFFIX)) {
+            return in;
+        }
+        try {
+            return new GZIPInputStream(in);
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    @Nullable
+    private File file() {
+        File dir = this.dir;
+        return dir != null ? new File(dir, FILE_NAME) : null;
+    }
+
+    private synchronized void drain() {
+        if (dir == null || queue.isEmpty()) {
+            return;
+        }
+        try {
+            if (out == null) {
+                open();
+            }
+            Record record;
+            while ((record = queue.poll()) != null) {
+                encode(record);
+            }
+            buffer.writeTo(out);
+            segmentSize += buffer.size();
+            if (segmentSize >= MAX_SEGMENT_SIZE || lastTime - segmentStart >= MAX_SEGMENT_AGE_MS) {
+                rotate();
+            }
+        } catch (IOException ignored) {
+            // logging never takes the caller down
+        } finally {
+            buffer.reset();
+        }
+    }
+
+    /**
+     * Opens current.bin for appending, first closing it if what the last process left is already
+     * due, and starts a session in it.
+     */
+    private void open() throws IOException {
+        File file = file();
+        long now = System.currentTimeMillis();
+        segmentSize = file.length();
+        segmentStart = segmentSize > 0 ? startOf(file) : now;
+        if (segmentSize >= MAX_SEGMENT_SIZE || now - segmentStart >= MAX_SEGMENT_AGE_MS) {
+            rotate();
+            segmentSize = 0;
+            segmentStart = now;
+        }
+        out = new FileOutputStream(file, true);
+        lastTime = now;
+        defined.clear();
+        buffer.write(SESSION);
+        buffer.writeVarint(lastTime);
+    }
+
+    /**
+     * The start time of the first session of file, or its modification time when that cannot be
+     * read.
+     */
+    private static long startOf(File file) {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            if (in.read() == SESSION) {
+                return readVarint(in);
+            }
+        } catch (IOException ignored) {
+        }
+        return file.lastModified();
+    }
+
+    /**
+     * Closes current.bin as a segment named after its start time and has it compressed. The next
+     * drain opens a new current.bin.
+     */
+    private void rotate() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException ignored) {
+            }
+            out = null;
+        }
+        long start = segmentStart;
+        File closed;
+        while ((closed = new File(dir, start + SEGMENT_SUFFIX)).exists()
+                || new File(dir, start + COMPRESSED_SUFFIX).exists()) {
+            start++;
+        }
+        if (file().renameTo(closed)) {
+            compactor.execute(this::compact);
+        }
+    }
+
+    /**
+     * Gzips the closed segments, then deletes the oldest until all of them fit in
+     * {@link #MAX_TOTAL_SIZE}. Runs on the compactor thread; only renames and deletes hold the
+     * lock, so writes are not held up by compression.
+     */
+    private void compact() {
+        File dir = this.dir;
+        File[] files = dir != null ? dir.listFiles() : null;
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(PARTIAL_SUFFIX)) {
+                // left by a compression the process did not live to finish
+                file.delete();
+            } else if (name.endsWith(SEGMENT_SUFFIX) && !name.equals(FILE_NAME) && startTime(name) >= 0) {
+                compress(file, new File(dir, name + ".gz"));
+            }
+        }
+        synchronized (this) {
+            List<File> segments = closedSegments();
+            long total = 0;
+            for (File segment : segments) {
+                total += segment.length();
+            }
+            File current = file();
+            if (current != null) {
+                total += current.length();
+            }
+            for (int i = 0; i < segments.size() && total > MAX_TOTAL_SIZE; i++) {
+                total -= segments.get(i).length();
+                segments.get(i).delete();
+            }
+        }
+    }
+
+    private void compress(File segment, File compressed) {
+        File partial = new File(compressed.getPath() + PARTIAL_SUFFIX);
+        if (!compressed.exists()) {
+            try (InputStream in = new FileInputStream(segment);
+                 OutputStream gzip = new GZIPOutputStream(new FileOutputStream(partial), 64 * 1024)) {
+                byte[] chunk = new byte[64 * 1024];
+                int read;
+                while ((read = in.read(chunk)) != -1) {
+                    gzip.write(chunk, 0, read);
+                }
+            } catch (IOException e) {
+                partial.delete();
+                return;
+            }
+        }
+        synchronized (this) {
+            // a .gz already there was completed before the process died, before the .bin was deleted
+            if (compressed.exists() || partial.renameTo(compressed)) {
+                segment.delete();
+            }
+            partial.delete();
+        }
+    }
+
+    /**
+     * The closed segments, oldest first; a segment both compressed and not is listed once.
+     */
+    private List<File> closedSegments() {
+        List<File> segments = new ArrayList<>();
+        File dir = this.dir;
+        File[] files = dir != null ? dir.listFiles() : null;
+        if (files == null) {
+            return segments;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (startTime(name) < 0) {
+                continue;
+            }
+            if (name.endsWith(SEGMENT_SUFFIX) && new File(dir, name + ".gz").exists()) {
+                continue;
+            }
+            segments.add(file);
+        }
+        Collections.sort(segments, (a, b) -> Long.compare(startTime(a.getName()), startTime(b.getName())));
+        return segments;
+    }
+
+    /**
+     * The start time a segment is named after, or -1 for any other file.
+     */
+    private static long startTime(String name) {
+        String start;
+        if (name.endsWith(COMPRESSED_SUFFIX)) {
+            start = name.substring(0, name.length() - COMPRESSED_SUFFIX.length());
+        } else if (name.endsWith(SEGMENT_SUFFIX)) {
+            start = name.substring(0, name.length() - SEGMENT_SUFFIX.length());
+        } else {
+            return -1;
+        }
+        try {
+            return Long.parseLong(start);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private void encode(Record record) {
+        Event event = record.event;
+        if (!defined.get(event.id)) {
+            defined.set(event.id);
+            buffer.write(EVENT);
+            buffer.writeVarint(event.id);
+            buffer.writeString(event.module);
+            buffer.writeString(event.name);
+            buffer.writeString(event.template);
+        }
+        buffer.write(RECORD);
+        buffer.writeVarint(zigzag(record.time - lastTime));
+        lastTime = record.time;
+        buffer.writeVarint(event.id);
+        buffer.writeVarint(record.args.length);
+        for (Object arg : record.args) {
+            if (arg == null) {
+                buffer.write(TAG_NULL);
+            } else if (arg instanceof Long || arg instanceof Integer || arg instanceof Short || arg instanceof Byte) {
+                buffer.write(TAG_LONG);
+                buffer.writeVarint(zigzag(((Number) arg).longValue()));
+            } else if (arg instanceof Double || arg instanceof Float) {
+                buffer.write(TAG_DOUBLE);
+                long bits = Double.doubleToRawLongBits(((Number) arg).doubleValue());
+                for (int shift = 56; shift >= 0; shift -= 8) {
+                    buffer.write((int) (bits >>> shift));
+                }
+            } else if (arg instanceof Boolean) {
+                buffer.write((Boolean) arg ? TAG_TRUE : TAG_FALSE);
+            } else {
+                buffer.write(TAG_STRING);
+                buffer.writeString(arg.toString());
+            }
+        }
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Renders a stream of records as text lines. A record cut short by the process dying ends the
+     * stream.
+     */
+    static void render(InputStream stream, Writer writer) throws IOException {
+        DataInputStream in = new DataInputStream(stream);
+        SimpleDateFormat timeFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US);
+        Map<Long, String[]> table = new HashMap<>();
+        long time = 0;
+        long prefixSecond = -1;
+        String prefix = "";
+        try {
+            int type;
+            while ((type = in.read()) != -1) {
+                if (type == SESSION) {
+                    time = readVarint(in);
+                    table.clear();
+                } else if (type == EVENT) {
+                    long id = readVarint(in);
+                    table.put(id, new String[]{readString(in), readString(in), readString(in)});
+                } else if (type == RECORD) {
+                    time += unzigzag(readVarint(in));
+                    String[] event = table.get(readVarint(in));
+                    long count = readVarint(in);
+                    if (count > 255) {
+                        throw new DamagedException(count + " arguments");
+                    }
+                    Object[] args = new Object[(int) count];
+                    for (int i = 0; i < args.length; i++) {
+                        args[i] = readArg(in);
+                    }
+                    if (event == null) {
+                        continue;
+                    }
+                    long second = time / 1000;
+                    if (second != prefixSecond) {
+                        prefixSecond = second;
+                        prefix = timeFormat.format(new Date(time));
+                    }
+                    writer.write(prefix);
+                    writer.write(" | INFO : app => native => ");
+                    if (!event[0].isEmpty()) {
+                        writer.write(event[0]);
+                        writer.write(':');
+                    }
+                    writer.write(event[1]);
+                    writer.write(": ");
+                    writer.write(format(event[2], args));
+                    writer.write('\n');
+                } else {
+                    throw new DamagedException("unknown record type " + type);
+                }
+            }
+        } catch (EOFException ignored) {
+            // cut off or damaged, the rest of the file cannot be trusted
+        }
+    }
+
+    private static String format(String template, Object[] args) {
+        try {
+            return String.format(Locale.US, template, args);
+        } catch (IllegalFormatException e) {
+            StringBuilder text = new StringBuilder(template);
+            for (Object arg : args) {
+                text.append(' ').append(arg);
+            }
+            return text.toString();
+        }
+    }
+
+    private static Object readArg(DataInputStream in) throws IOException {
+        int tag = in.readUnsignedByte();
+        switch (tag) {
+            case TAG_NULL:
+                return null;
+            case TAG_LONG:
+                return unzigzag(readVarint(in));
+            case TAG_DOUBLE:
+                return in.readDouble();
+            case TAG_STRING:
+                return readString(in);
+            case TAG_TRUE:
+                return true;
+            case TAG_FALSE:
+                return false;
+            default:
+                throw new DamagedException("unknown argument tag " + tag);
+        }
+    }
+
+    private static long readVarint(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new DamagedException("bad varint");
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        long length = readVarint(in);
+        if (length > MAX_STRING) {
+            throw new DamagedException("string of " + length + " bytes");
+        }
+        byte[] bytes = new byte[(int) length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,120 @@
+package so.onekey.app.wallet;
+
+/**
+ * Turns per-chunk byte counts into rate-limited progress updates with throughput and ETA.
+ *
+ * The JS channel and the notification channel each get their own minimum interval, so a fast
+ * link does not flood the bridge or rebuild the notification on every chunk. Works with an
+ * unknown total length (percent is then reported as -1).
+ */
+public class ProgressPublisher {
+    public static final long DEFAULT_JS_INTERVAL_MS = 250;
+    public static final long DEFAULT_NOTIFICATION_INTERVAL_MS = 1000;
+    // weight of the newest sample in the smoothed throughput
+    private static final double SMOOTHING = 0.3;
+
+    public static class Progress {
+        public final long bytes;
+        // -1 when the server sent no length
+        public final long total;
+        public final int percent;
+        public final long bytesPerSecond;
+        // -1 when unknown
+        public final long etaSeconds;
+
+        Progress(long bytes, long total, long bytesPerSecond) {
+            this.bytes = bytes;
+            this.total = total;
+            this.percent = total > 0 ? (int) Math.min(100, (bytes * 100) / total) : -1;
+            this.bytesPerSecond = bytesPerSecond;
+            this.etaSeconds = total > 0 && bytesPerSecond > 0 ? (total - bytes) / bytesPerSecond : -1;
+        }
+    }
+
+    public interface Listener {
+        void onProgress(Progress progress);
+
+        void onNotification(Progress progress);
+    }
+
+    private final long jsIntervalNanos;
+    private final long notificationIntervalNanos;
+    private final Listener listener;
+
+    private long lastSampleTime;
+    private long lastSampleBytes;
+    private double bytesPerSecond = 0;
+    private long lastJsTime;
+    private long lastJsBytes = -1;
+    private long lastNotificationTime;
+    private int lastNotificationPercent = -2;
+
+    public ProgressPublisher(long jsIntervalMs, long notificationIntervalMs, Listener listener) {
+        this.jsIntervalNanos = jsIntervalMs * 1_000_000L;
+        this.notificationIntervalNanos = notificationIntervalMs * 1_000_000L;
+        this.listener = listener;
+    }
+
+    public ProgressPublisher(Listener listener) {
+        this(DEFAULT_JS_INTERVAL_MS, DEFAULT_NOTIFICATION_INTERVAL_MS, listener);
+    }
+
+    /**
+     * Resets the clocks; bytes already on disk (a resumed download) do not count towards throughput.
+     */
+    public void start(long initialBytes) {
+        long now = System.nanoTime();
+        lastSampleTime = now;
+        lastSampleBytes = initialBytes;
+        bytesPerSecond = 0;
+        // let the first update through right away
+        lastJsTime = now - jsIntervalNanos;
+        lastJsBytes = -1;
+        lastNotificationTime = now - notificationIntervalNanos;
+        lastNotificationPercent = -2;
+    }
+
+    /**
+     * Called for every chunk. Returns true when an update went out on the JS channel, which is
+     * also a good moment for the caller to check for cancellation.
+     */
+    public boolean update(long bytes, long total) {
+        long now = System.nanoTime();
+        if (now - lastJsTime < jsIntervalNanos && !(total > 0 && bytes >= total)) {
+            return false;
+        }
+        sample(now, bytes);
+        Progress progress = new Progress(bytes, total, (long) bytesPerSecond);
+        boolean published = false;
+        if (bytes != lastJsBytes) {
+            listener.onProgress(progress);
+            lastJsTime = now;
+            lastJsBytes = bytes;
+            published = true;
+        }
+        if (now - lastNotificationTime >= notificationIntervalNanos && progress.percent != lastNotificationPercent) {
+            listener.onNotification(progress);
+            lastNotificationTime = now;
+            lastNotificationPercent = progress.percent;
+        }
+        return published;
+    }
+
+    /**
+     * Smoothed throughput as of the last update that went out.
+     */
+    public long bytesPerSecond() {
+        return (long) bytesPerSecond;
+    }
+
+    private void sample(long now, long bytes) {
+        long elapsed = now - lastSampleTime;
+        if (elapsed <= 0) {
+            return;
+        }
+        double rate = (bytes - lastSampleBytes) * 1_000_000_000d / elapsed;
+        bytesPerSecond = bytesPerSecond == 0 ? rate : SMOOTHING * rate + (1 - SMOOTHING) * bytesPerSecond;
+        lastSampleTime = now;
+        lastSampleBytes = bytes;
+    }
+}
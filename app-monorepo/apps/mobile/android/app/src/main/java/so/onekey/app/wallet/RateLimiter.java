@@ -0,0 +1,59 @@
+package so.onekey.app.wallet;
+
+/**
+ * Token bucket shared by every connection of the update downloads. A rate of 0 means unlimited;
+ * the rate can be changed at any time and applies to the next read.
+ *
+ * A read is taken out of the bucket after it happened, so the bucket can go into debt and the
+ * next reader waits until it is paid off. Waiting is interruptible, which is how cancelled
+ * downloads get out of it.
+ */
+public class RateLimiter {
+    // smallest read while capped, so tiny rates do not turn into a syscall per byte
+    private static final long MIN_CHUNK = 8 * 1024;
+
+    private long bytesPerSecond = 0;
+    private double tokens = 0;
+    private long lastRefill = System.nanoTime();
+
+    public synchronized void setRate(long bytesPerSecond) {
+        refill();
+        this.bytesPerSecond = Math.max(0, bytesPerSecond);
+        tokens = Math.min(tokens, this.bytesPerSecond);
+        // waiters re-evaluate against the new rate
+        notifyAll();
+    }
+
+    public synchronized long rate() {
+        return bytesPerSecond;
+    }
+
+    /**
+     * How much to read at most before the next {@link #acquire}, about an eighth of a second's
+     * worth while capped.
+     */
+    public synchronized long chunkSize() {
+        return bytesPerSecond == 0 ? Long.MAX_VALUE : Math.max(MIN_CHUNK, bytesPerSecond / 8);
+    }
+
+    public synchronized void acquire(long bytes) throws InterruptedException {
+        while (bytesPerSecond > 0) {
+            refill();
+            if (tokens > 0) {
+                tokens -= bytes;
+                return;
+            }
+            long waitMs = (long) Math.ceil(-tokens * 1000 / bytesPerSecond);
+            wait(Math.max(1, waitMs));
+        }
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        if (bytesPerSecond > 0) {
+            // at most a second's worth of burst
+            tokens = Math.min(bytesPerSecond, tokens + (now - lastRefill) * bytesPerSecond / 1e9);
+        }
+        lastRefill = now;
+    }
+}
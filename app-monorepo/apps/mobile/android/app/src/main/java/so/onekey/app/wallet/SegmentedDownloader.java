@@ -0,0 +1,216 @@
+package so.onekey.app.wallet;
+
+import androidx.annotation.Nullable;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Call;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okio.BufferedSource;
+
+/**
+ * Fetches one file over several connections, each owning a byte range and writing it at its own
+ * offset of the target through positional FileChannel writes.
+ */
+public class SegmentedDownloader {
+    public static final long MIN_SEGMENT_SIZE = 4 * 1024 * 1024;
+    private static final long PROGRESS_INTERVAL_MS = 200;
+    static final long SAVE_INTERVAL_MS = 2000;
+
+    public interface ProgressListener {
+        void onProgress(long downloaded, long total);
+    }
+
+    /**
+     * Thrown when a segment comes back as a full response or from another version of the file,
+     * which means the partial data on disk can no longer be trusted.
+     */
+    public static class ValidatorChangedException extends IOException {
+        public ValidatorChangedException(String message) {
+            super(message);
+        }
+    }
+
+    private final OkHttpClient client;
+    private final String url;
+    private final File target;
+    private final DownloadState state;
+    private final RateLimiter limiter;
+    private final List<Call> calls = Collections.synchronizedList(new ArrayList<>());
+    private volatile boolean cancelled = false;
+
+    public SegmentedDownloader(OkHttpClient client, String url, File target, DownloadState state,
+                               RateLimiter limiter) {
+        this.client = client;
+        this.url = url;
+        this.target = target;
+        this.state = state;
+        this.limiter = limiter;
+    }
+
+    public static boolean supports(long contentLength, int connections, @Nullable String acceptRanges) {
+        return connections > 1 && "bytes".equalsIgnoreCase(acceptRanges) && contentLength >= 2 * MIN_SEGMENT_SIZE;
+    }
+
+    public static List<DownloadState.Segment> split(long contentLength, int connections) {
+        int count = (int) Math.max(1, Math.min(connections, contentLength / MIN_SEGMENT_SIZE));
+        long size = contentLength / count;
+        List<DownloadState.Segment> segments = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            long start = i * size;
+            long end = i == count - 1 ? contentLength - 1 : start + size - 1;
+            segments.add(new DownloadState.Segment(start, end, start));
+        }
+        return segments;
+    }
+
+    /**
+     * Blocks the calling thread until every segment is on disk. Progress is reported from the
+     * calling thread, and interrupting it cancels all connections.
+     */
+    public void download(ProgressListener listener) throws IOException, InterruptedException {
+        try (RandomAccessFile file = new RandomAccessFile(target, "rw")) {
+            ExecutorService executor = Executors.newFixedThreadPool(state.segments.size(),
+                    DownloadManager.backgroundThreads("update-segment"));
+            try {
+                download(listener, file, executor);
+            } finally {
+                stop(executor, file.getChannel());
+            }
+        }
+    }
+
+    private void download(ProgressListener listener, RandomAccessFile file, ExecutorService executor)
+            throws IOException, InterruptedException {
+        DiskSpace.preallocate(file, state.contentLength);
+        FileChannel channel = file.getChannel();
+        List<Future<?>> futures = new ArrayList<>();
+        for (DownloadState.Segment segment : state.segments) {
+            if (!segment.isDone()) {
+                futures.add(executor.submit(() -> {
+                    fetch(segment, channel);
+                    return null;
+                }));
+            }
+        }
+
+        long lastSave = System.currentTimeMillis();
+        boolean done = false;
+        while (!done) {
+            Thread.sleep(PROGRESS_INTERVAL_MS);
+            done = true;
+            for (Future<?> future : futures) {
+                if (!future.isDone()) {
+                    done = false;
+                    continue;
+                }
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof IOException) {
+                        throw (IOException) cause;
+                    }
+                    throw new IOException(cause);
+                }
+            }
+            listener.onProgress(state.downloaded(), state.contentLength);
+            if (Thread.currentThread().isInterrupted()) {
+                // paused from the listener; forcing the channel now would close it
+                throw new InterruptedException();
+            }
+            long now = System.currentTimeMillis();
+            if (!done && now - lastSave >= SAVE_INTERVAL_MS) {
+                state.save(target, channel);
+                lastSave = now;
+            }
+        }
+    }
+
+    /**
+     * Stops the segments and saves how far they got. They are let finish their current write
+     * rather than interrupted, as an interrupted write closes the channel the state is forced
+     * through.
+     */
+    private void stop(ExecutorService executor, FileChannel channel) {
+        cancel();
+        executor.shutdown();
+        // a pause interrupts the calling thread, which would close the channel as well
+        boolean interrupted = Thread.interrupted();
+        try {
+            executor.awaitTermination(SAVE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+            if (state.downloaded() < state.contentLength) {
+                state.save(target, channel);
+            }
+        } catch (IOException | InterruptedException ignored) {
+            // the last periodic save still holds
+        } finally {
+            executor.shutdownNow();
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public void cancel() {
+        cancelled = true;
+        synchronized (calls) {
+            for (Call call : calls) {
+                call.cancel();
+            }
+        }
+    }
+
+    private void fetch(DownloadState.Segment segment, FileChannel channel) throws IOException {
+        Request request = new Request.Builder()
+                .url(url)
+                .header("Range", "bytes=" + segment.next + "-" + segment.end)
+                .header("If-Range", state.validator())
+                .build();
+        Call call = client.newCall(request);
+        calls.add(call);
+        if (cancelled) {
+            call.cancel();
+        }
+        try (Response response = call.execute()) {
+            if (response.code() != 206
+                    || DownloadState.parseContentRangeStart(response.header("Content-Range")) != segment.next
+                    || !state.matches(response.header("ETag"), response.header("Last-Modified"))) {
+                throw new ValidatorChangedException("segment " + segment.start + " got " + response.code());
+            }
+            BufferedSource source = response.body().source();
+            try (CoalescingFileWriter writer = new CoalescingFileWriter(channel, segment.next, null)) {
+                while (writer.end() <= segment.end) {
+                    int count = writer.readFrom(source, Math.min(limiter.chunkSize(), segment.end - writer.end() + 1));
+                    if (count < 0) {
+                        throw new EOFException("segment " + segment.start + " ended at " + writer.end());
+                    }
+                    try {
+                        limiter.acquire(count);
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException("segment " + segment.start + " interrupted");
+                    }
+                    // only bytes that reached the file count as done, for resuming
+                    segment.next = writer.position();
+                }
+                writer.flush();
+                segment.next = writer.position();
+            }
+        }
+    }
+}
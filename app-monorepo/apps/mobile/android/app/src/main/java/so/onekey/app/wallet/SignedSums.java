@@ -0,0 +1,143 @@
+package so.onekey.app.wallet;
+
+import androidx.annotation.Nullable;
+
+import org.bouncycastle.openpgp.PGPException;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A verified SHA256SUMS file as an index from file name to digest, so one signed file can cover
+ * every artifact of a release (APK per flavor, ABI splits, bundles).
+ *
+ * The signature is checked once per distinct file: results are cached by the SHA-256 of the
+ * signed file, and every artifact downloaded with the same SHA256SUMS is looked up in the same
+ * index.
+ */
+public class SignedSums {
+    // a handful of releases at most are in play at the same time
+    private static final int CACHE_SIZE = 4;
+    private static final Map<String, SignedSums> CACHE = new LinkedHashMap<String, SignedSums>(8, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, SignedSums> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    private final Map<String, String> byName;
+    // the first digest without a file name, the form a single-artifact SHA256SUMS may take
+    @Nullable private final String bare;
+
+    private SignedSums(Map<String, String> byName, @Nullable String bare) {
+        this.byName = byName;
+        this.bare = bare;
+    }
+
+    /**
+     * The index of a clear-signed SHA256SUMS file, or null when its signature does not verify
+     * against the release keys.
+     */
+    @Nullable
+    public static SignedSums of(byte[] ascFileContent) throws IOException, PGPException, NoSuchAlgorithmException {
+        MessageDigest digest = Digests.newSha256();
+        String key = Digests.toHex(digest.digest(ascFileContent));
+        synchronized (CACHE) {
+            SignedSums cached = CACHE.get(key);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        String body = Verification.verifiedContent(ascFileContent);
+        if (body == null) {
+            return null;
+        }
+        SignedSums sums = parse(body);
+        synchronized (CACHE) {
+            CACHE.put(key, sums);
+        }
+        return sums;
+    }
+
+    /**
+     * Reads sha256sum output: "&lt;digest&gt;  &lt;name&gt;", "&lt;digest&gt; *&lt;name&gt;" for
+     * binary mode, or a bare digest. Names are reduced to their last path segment.
+     */
+    static SignedSums parse(String body) {
+        Map<String, String> byName = new HashMap<>();
+        String bare = null;
+        for (String line : body.split("\n")) {
+            line = line.trim();
+            int space = line.indexOf(' ');
+            String sha256 = space < 0 ? line : line.substring(0, space);
+            if (sha256.isEmpty()) {
+                continue;
+            }
+            if (space < 0) {
+                if (bare == null) {
+                    bare = sha256;
+                }
+                continue;
+            }
+            String name = line.substring(space + 1).trim();
+            if (name.startsWith("*")) {
+                name = name.substring(1);
+            }
+            name = name.substring(name.lastIndexOf('/') + 1);
+            if (!name.isEmpty()) {
+                byName.put(name, sha256);
+            }
+        }
+        return new SignedSums(byName, bare);
+    }
+
+    /**
+     * The digest signed for fileName, or "" when there is none. A bare digest, signed without a
+     * file name, answers for any name. A named entry only answers for its own name, or for a
+     * caller that has no name to look up when it is the only entry.
+     */
+    public String sha256For(@Nullable String fileName) {
+        if (fileName != null) {
+            String sha256 = byName.get(fileName);
+            if (sha256 != null) {
+                return sha256;
+            }
+        } else if (byName.size() == 1) {
+            return byName.values().iterator().next();
+        }
+        if (byName.isEmpty() && bare != null) {
+            return bare;
+        }
+        return "";
+    }
+
+    public int size() {
+        return byName.size();
+    }
+
+    /**
+     * The last path segment of url, without query or fragment.
+     */
+    @Nullable
+    public static String fileName(@Nullable String url) {
+        if (url == null || url.isEmpty()) {
+            return null;
+        }
+        int end = url.length();
+        int query = url.indexOf('?');
+        if (query >= 0) {
+            end = query;
+        }
+        int fragment = url.indexOf('#');
+        if (fragment >= 0 && fragment < end) {
+            end = fragment;
+        }
+        String path = url.substring(0, end);
+        String name = path.substring(path.lastIndexOf('/') + 1);
+        return name.isEmpty() ? null : name;
+    }
+}
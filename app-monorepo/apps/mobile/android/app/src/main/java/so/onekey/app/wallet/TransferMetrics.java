@@ -0,0 +1,186 @@
+package so.onekey.app.wallet;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+import okhttp3.Call;
+import okhttp3.EventListener;
+import okhttp3.Handshake;
+import okhttp3.Protocol;
+import okhttp3.Response;
+
+/**
+ * Per-phase timings of update transfers, collected through an OkHttp EventListener.
+ *
+ * Every finished call (successful or not) produces a {@link Summary} which is handed to the
+ * {@link Sink} and kept in a small ring of recent transfers.
+ */
+public class TransferMetrics {
+    private static final int MAX_RECENT = 20;
+
+    public static class Summary {
+        public String label;
+        public String host;
+        @Nullable public String protocol;
+        @Nullable public String error;
+        public int status = -1;
+        // milliseconds, -1 when the phase did not happen (e.g. a pooled connection)
+        public long dnsMs = -1;
+        public long connectMs = -1;
+        public long tlsMs = -1;
+        public long ttfbMs = -1;
+        public long bodyMs = -1;
+        public long totalMs = -1;
+        public long bodyBytes = 0;
+        // connection attempts that failed before one succeeded
+        public int retries = 0;
+        public long retryMs = 0;
+
+        public long bytesPerSecond() {
+            return bodyMs > 0 ? bodyBytes * 1000 / bodyMs : -1;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return label + " " + host + (protocol != null ? " " + protocol : "") + " status=" + status
+                    + " dns=" + dnsMs + "ms connect=" + connectMs + "ms tls=" + tlsMs + "ms ttfb=" + ttfbMs
+                    + "ms body=" + bodyBytes + "B/" + bodyMs + "ms (" + bytesPerSecond() + "B/s) total=" + totalMs
+                    + "ms retries=" + retries + "/" + retryMs + "ms" + (error != null ? " error=" + error : "");
+        }
+    }
+
+    public interface Sink {
+        void onTransferComplete(Summary summary);
+    }
+
+    private final Sink sink;
+    private final ArrayDeque<Summary> recent = new ArrayDeque<>();
+
+    public TransferMetrics(Sink sink) {
+        this.sink = sink;
+    }
+
+    public EventListener.Factory factory() {
+        return call -> new Listener(call);
+    }
+
+    public synchronized List<Summary> recent() {
+        return new ArrayList<>(recent);
+    }
+
+    private synchronized void complete(Summary summary) {
+        if (recent.size() == MAX_RECENT) {
+            recent.removeFirst();
+        }
+        recent.addLast(summary);
+        sink.onTransferComplete(summary);
+    }
+
+    private static long elapsedMs(long startNanos) {
+        return (System.nanoTime() - startNanos) / 1_000_000;
+    }
+
+    private class Listener extends EventListener {
+        private final Summary summary = new Summary();
+        private long callStart;
+        private long dnsStart;
+        private long connectStart;
+        private long tlsStart;
+        private long requestStart;
+        private long bodyStart;
+
+        Listener(Call call) {
+            String path = call.request().url().encodedPath();
+            summary.label = path.substring(path.lastIndexOf('/') + 1);
+            summary.host = call.request().url().host();
+        }
+
+        @Override
+        public void callStart(@NonNull Call call) {
+            callStart = System.nanoTime();
+        }
+
+        @Override
+        public void dnsStart(@NonNull Call call, @NonNull String domainName) {
+            dnsStart = System.nanoTime();
+        }
+
+        @Override
+        public void dnsEnd(@NonNull Call call, @NonNull String domainName, @NonNull List<InetAddress> inetAddressList) {
+            summary.dnsMs = elapsedMs(dnsStart);
+        }
+
+        @Override
+        public void connectStart(@NonNull Call call, @NonNull InetSocketAddress inetSocketAddress, @NonNull Proxy proxy) {
+            connectStart = System.nanoTime();
+        }
+
+        @Override
+        public void secureConnectStart(@NonNull Call call) {
+            tlsStart = System.nanoTime();
+        }
+
+        @Override
+        public void secureConnectEnd(@NonNull Call call, @Nullable Handshake handshake) {
+            summary.tlsMs = elapsedMs(tlsStart);
+        }
+
+        @Override
+        public void connectEnd(@NonNull Call call, @NonNull InetSocketAddress inetSocketAddress, @NonNull Proxy proxy,
+                               @Nullable Protocol protocol) {
+            summary.connectMs = elapsedMs(connectStart);
+            summary.protocol = protocol != null ? protocol.toString() : null;
+        }
+
+        @Override
+        public void connectFailed(@NonNull Call call, @NonNull InetSocketAddress inetSocketAddress, @NonNull Proxy proxy,
+                                  @Nullable Protocol protocol, @NonNull IOException ioe) {
+            summary.retries++;
+            summary.retryMs += elapsedMs(connectStart);
+        }
+
+        @Override
+        public void requestHeadersStart(@NonNull Call call) {
+            requestStart = System.nanoTime();
+        }
+
+        @Override
+        public void responseHeadersEnd(@NonNull Call call, @NonNull Response response) {
+            summary.ttfbMs = elapsedMs(requestStart);
+            summary.status = response.code();
+        }
+
+        @Override
+        public void responseBodyStart(@NonNull Call call) {
+            bodyStart = System.nanoTime();
+        }
+
+        @Override
+        public void responseBodyEnd(@NonNull Call call, long byteCount) {
+            summary.bodyMs = elapsedMs(bodyStart);
+            summary.bodyBytes = byteCount;
+        }
+
+        @Override
+        public void callEnd(@NonNull Call call) {
+            summary.totalMs = elapsedMs(callStart);
+            complete(summary);
+        }
+
+        @Override
+        public void callFailed(@NonNull Call call, @NonNull IOException ioe) {
+            summary.totalMs = elapsedMs(callStart);
+            summary.error = ioe.getClass().getSimpleName() + ": " + ioe.getMessage();
+            complete(summary);
+        }
+    }
+}
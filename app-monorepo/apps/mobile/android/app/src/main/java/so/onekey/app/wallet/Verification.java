@@ -1,29 +1,30 @@
 package so.onekey.app.wallet;
 
+import androidx.annotation.Nullable;
+
 import org.bouncycastle.bcpg.ArmoredInputStream;
+import org.bouncycastle.openpgp.PGPException;
 import org.bouncycastle.openpgp.PGPPublicKey;
+import org.bouncycastle.openpgp.PGPPublicKeyRing;
 import org.bouncycastle.openpgp.PGPPublicKeyRingCollection;
 import org.bouncycastle.openpgp.PGPSignature;
-import org.bouncycastle.openpgp.PGPSignatureGenerator;
 import org.bouncycastle.openpgp.PGPSignatureList;
 import org.bouncycastle.openpgp.jcajce.JcaPGPObjectFactory;
 import org.bouncycastle.openpgp.operator.jcajce.JcaKeyFingerprintCalculator;
 import org.bouncycastle.openpgp.operator.jcajce.JcaPGPContentVerifierBuilderProvider;
-import org.bouncycastle.util.Strings;
 import org.bouncycastle.openpgp.PGPUtil;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.security.Provider;
 import java.security.Security;
-import java.security.SignatureException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
 
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 
@@ -42,6 +43,8 @@ public class Verification {
         // all needed ciphers, we substitute it with a known BC bundled in the app.
         // Android's BC has its package rewritten to "com.android.org.bouncycastle" and because
         // of that it's possible to have another BC implementation loaded in VM.
+        // It takes the stripped provider's place at the top, as the rest of the app expects;
+        // update hashing does not go through provider order (see Digests.newSha256).
         Security.removeProvider(BouncyCastleProvider.PROVIDER_NAME);
         Security.insertProviderAt(new BouncyCastleProvider(), 1);
     }
@@ -98,205 +101,149 @@ public class Verification {
             "P2Q5dClenjjjVA==\n" +
             "=F0np\n" +
             "-----END PGP PUBLIC KEY BLOCK-----";
-    private static int readInputLine(ByteArrayOutputStream bOut, InputStream fIn)
-            throws IOException
-    {
-        bOut.reset();
-
-        int lookAhead = -1;
-        int ch;
-
-        while ((ch = fIn.read()) >= 0)
-        {
-            bOut.write(ch);
-            if (ch == '\r' || ch == '\n')
-            {
-                lookAhead = readPassedEOL(bOut, ch, fIn);
-                break;
+    /**
+     * Everything that only depends on PUBLIC_KEY, built once on first use (or by warmUp): the
+     * provider setup, every key of every ring in the block indexed by key ID, and the verifier
+     * builder shared by all signature checks.
+     */
+    private static final class Keys {
+        static final Map<Long, PGPPublicKey> BY_ID;
+        static final JcaPGPContentVerifierBuilderProvider VERIFIER_BUILDER;
+
+        static {
+            setupBouncyCastle();
+            try {
+                BY_ID = parseKeyRing(PUBLIC_KEY.getBytes());
+            } catch (IOException | PGPException e) {
+                throw new IllegalStateException("invalid embedded public key", e);
             }
+            VERIFIER_BUILDER = new JcaPGPContentVerifierBuilderProvider().setProvider("BC");
         }
-
-        return lookAhead;
     }
 
-    private static int readInputLine(ByteArrayOutputStream bOut, int lookAhead, InputStream fIn)
-            throws IOException
-    {
-        bOut.reset();
-
-        int ch = lookAhead;
-
-        do
-        {
-            bOut.write(ch);
-            if (ch == '\r' || ch == '\n')
-            {
-                lookAhead = readPassedEOL(bOut, ch, fIn);
-                break;
+    /**
+     * Every key of every ring in an armored (or binary) public key block, by key ID.
+     */
+    public static Map<Long, PGPPublicKey> parseKeyRing(byte[] keyBlock) throws IOException, PGPException {
+        Map<Long, PGPPublicKey> keys = new HashMap<>();
+        try (InputStream keyIn = PGPUtil.getDecoderStream(new ByteArrayInputStream(keyBlock))) {
+            PGPPublicKeyRingCollection rings = new PGPPublicKeyRingCollection(keyIn, new JcaKeyFingerprintCalculator());
+            Iterator<PGPPublicKeyRing> ringIterator = rings.getKeyRings();
+            while (ringIterator.hasNext()) {
+                Iterator<PGPPublicKey> keyIterator = ringIterator.next().getPublicKeys();
+                while (keyIterator.hasNext()) {
+                    PGPPublicKey key = keyIterator.next();
+                    keys.put(key.getKeyID(), key);
+                }
             }
         }
-        while ((ch = fIn.read()) >= 0);
-
-        if (ch < 0)
-        {
-            lookAhead = -1;
-        }
-
-        return lookAhead;
+        return keys;
     }
 
-    private static int readPassedEOL(ByteArrayOutputStream bOut, int lastCh, InputStream fIn)
-            throws IOException
-    {
-        int lookAhead = fIn.read();
+    /**
+     * Parses the key ring ahead of the first verification, meant to be called off the main thread.
+     */
+    public static void warmUp() {
+        Keys.BY_ID.size();
+    }
 
-        if (lastCh == '\r' && lookAhead == '\n')
-        {
-            bOut.write(lookAhead);
-            lookAhead = fIn.read();
+    /**
+     * The content of a signed file on disk, for {@link #verifiedContent}. Read through a stream
+     * since java.nio.file only exists from API 26.
+     */
+    public static byte[] readSignedFile(File file) throws IOException {
+        try (FileInputStream fis = new FileInputStream(file)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.min(file.length(), 1024 * 1024));
+            byte[] chunk = new byte[8192];
+            int read;
+            while ((read = fis.read(chunk)) != -1) {
+                out.write(chunk, 0, read);
+            }
+            return out.toByteArray();
         }
-
-        return lookAhead;
     }
 
-    /*
-     * verify a clear text signed file
+    /**
+     * Checks a clear-signed SHA256SUMS file in one pass over memory and returns its body, or null
+     * when the signature does not verify against one of the release keys.
+     *
+     * The cleartext is collected from the armor once; it is then canonicalized (RFC 4880 7.1:
+     * trailing whitespace dropped, lines joined with CRLF, no final line break) by scanning the
+     * buffer for line ends and feeding each line's range straight into the signature.
      */
-    private static boolean verifyFile(
-            InputStream        in,
-            InputStream        keyIn,
-            String             resultName
-    )
-            throws Exception
-    {
-        ArmoredInputStream    aIn = new ArmoredInputStream(in);
-        OutputStream          out = new BufferedOutputStream(new FileOutputStream(resultName));
-
-
-
-        //
-        // write out signed section using the local line separator.
-        // note: trailing white space needs to be removed from the end of
-        // each line RFC 4880 Section 7.1
-        //
-        ByteArrayOutputStream lineOut = new ByteArrayOutputStream();
-        int                   lookAhead = readInputLine(lineOut, aIn);
-        byte[]                lineSep = getLineSeparator();
-
-        if (lookAhead != -1 && aIn.isClearText())
-        {
-            byte[] line = lineOut.toByteArray();
-            out.write(line, 0, getLengthWithoutSeparatorOrTrailingWhitespace(line));
-            out.write(lineSep);
+    @Nullable
+    public static String verifiedContent(byte[] ascFileContent) throws IOException, PGPException {
+        return verifiedContent(ascFileContent, Keys.BY_ID);
+    }
 
-            while (lookAhead != -1 && aIn.isClearText())
-            {
-                lookAhead = readInputLine(lineOut, lookAhead, aIn);
+    /**
+     * Same, against the given keys instead of the embedded release keys.
+     */
+    @Nullable
+    public static String verifiedContent(byte[] ascFileContent, Map<Long, PGPPublicKey> keys)
+            throws IOException, PGPException {
+        ArmoredInputStream aIn = new ArmoredInputStream(new ByteArrayInputStream(ascFileContent));
+        ClearText clearText = new ClearText(ascFileContent.length);
+        int ch;
+        while ((ch = aIn.read()) >= 0 && aIn.isClearText()) {
+            clearText.write(ch);
+        }
 
-                line = lineOut.toByteArray();
-                out.write(line, 0, getLengthWithoutSeparatorOrTrailingWhitespace(line));
-                out.write(lineSep);
-            }
+        JcaPGPObjectFactory pgpFact = new JcaPGPObjectFactory(aIn);
+        Object object = pgpFact.nextObject();
+        if (!(object instanceof PGPSignatureList) || ((PGPSignatureList) object).isEmpty()) {
+            return null;
         }
-        else
-        {
-            // a single line file
-            if (lookAhead != -1)
-            {
-                byte[] line = lineOut.toByteArray();
-                out.write(line, 0, getLengthWithoutSeparatorOrTrailingWhitespace(line));
-                out.write(lineSep);
-            }
+        PGPSignature sig = ((PGPSignatureList) object).get(0);
+        PGPPublicKey publicKey = keys.get(sig.getKeyID());
+        if (publicKey == null) {
+            // not signed by any of our release keys
+            return null;
         }
-
-        out.close();
-
-        PGPPublicKeyRingCollection pgpRings = new PGPPublicKeyRingCollection(keyIn, new JcaKeyFingerprintCalculator());
-
-        JcaPGPObjectFactory           pgpFact = new JcaPGPObjectFactory(aIn);
-        PGPSignatureList           p3 = (PGPSignatureList)pgpFact.nextObject();
-        PGPSignature               sig = p3.get(0);
-        PGPPublicKey publicKey = pgpRings.getPublicKey(sig.getKeyID());
-        setupBouncyCastle();
-        sig.init(new JcaPGPContentVerifierBuilderProvider().setProvider("BC"), publicKey);
-
-        //
-        // read the input, making sure we ignore the last newline.
-        //
-
-        InputStream sigIn = new BufferedInputStream(new FileInputStream(resultName));
-
-        lookAhead = readInputLine(lineOut, sigIn);
-
-        processLine(sig, lineOut.toByteArray());
-
-        if (lookAhead != -1)
-        {
-            do
-            {
-                lookAhead = readInputLine(lineOut, lookAhead, sigIn);
-
-                sig.update((byte)'\r');
-                sig.update((byte)'\n');
-
-                processLine(sig, lineOut.toByteArray());
+        sig.init(Keys.VERIFIER_BUILDER, publicKey);
+
+        byte[] buf = clearText.buffer();
+        int length = clearText.size();
+        int start = 0;
+        while (start < length) {
+            int end = start;
+            while (end < length && !isLineEnding(buf[end])) {
+                end++;
             }
-            while (lookAhead != -1);
-        }
-
-        sigIn.close();
-
-        boolean isVerified = sig.verify();
-        return isVerified;
-    }
-
-    private static byte[] getLineSeparator()
-    {
-        String nl = Strings.lineSeparator();
-        byte[] nlBytes = new byte[nl.length()];
-
-        for (int i = 0; i != nlBytes.length; i++)
-        {
-            nlBytes[i] = (byte)nl.charAt(i);
+            int next = end;
+            if (next < length) {
+                next += buf[next] == '\r' && next + 1 < length && buf[next + 1] == '\n' ? 2 : 1;
+            }
+            if (start > 0) {
+                sig.update((byte) '\r');
+                sig.update((byte) '\n');
+            }
+            int lineEnd = end;
+            while (lineEnd > start && isWhiteSpace(buf[lineEnd - 1])) {
+                lineEnd--;
+            }
+            if (lineEnd > start) {
+                sig.update(buf, start, lineEnd - start);
+            }
+            start = next;
         }
-
-        return nlBytes;
-    }
-
-    private static void processLine(PGPSignature sig, byte[] line)
-            throws SignatureException, IOException
-    {
-        int length = getLengthWithoutWhiteSpace(line);
-        if (length > 0)
-        {
-            sig.update(line, 0, length);
+        if (!sig.verify()) {
+            return null;
         }
+        return new String(buf, 0, length);
     }
 
-    private static void processLine(OutputStream aOut, PGPSignatureGenerator sGen, byte[] line)
-            throws SignatureException, IOException
-    {
-        // note: trailing white space needs to be removed from the end of
-        // each line for signature calculation RFC 4880 Section 7.1
-        int length = getLengthWithoutWhiteSpace(line);
-        if (length > 0)
-        {
-            sGen.update(line, 0, length);
+    /**
+     * Exposes its buffer so the cleartext is scanned without another copy.
+     */
+    private static class ClearText extends ByteArrayOutputStream {
+        ClearText(int size) {
+            super(size);
         }
 
-        aOut.write(line, 0, line.length);
-    }
-
-    private static int getLengthWithoutSeparatorOrTrailingWhitespace(byte[] line)
-    {
-        int    end = line.length - 1;
-
-        while (end >= 0 && isWhiteSpace(line[end]))
-        {
-            end--;
+        byte[] buffer() {
+            return buf;
         }
-
-        return end + 1;
     }
 
     private static boolean isLineEnding(byte b)
@@ -304,40 +251,8 @@ public class Verification {
         return b == '\r' || b == '\n';
     }
 
-    private static int getLengthWithoutWhiteSpace(byte[] line)
-    {
-        int    end = line.length - 1;
-
-        while (end >= 0 && isWhiteSpace(line[end]))
-        {
-            end--;
-        }
-
-        return end + 1;
-    }
-
     private static boolean isWhiteSpace(byte b)
     {
-        return isLineEnding(b) || b == '\t' || b == ' ';
-    }
-
-    public static String extractedSha256FromVerifyAscFile(String ascFileContent, String cacheFilePath) throws Exception {
-        InputStream        keyIn = PGPUtil.getDecoderStream(new ByteArrayInputStream(PUBLIC_KEY.getBytes()));
-        InputStream in = new ByteArrayInputStream(ascFileContent.getBytes());
-        boolean isVerified = verifyFile(in, keyIn, cacheFilePath);
-        if (!isVerified) {
-            return "";
-        }
-        ArmoredInputStream ascFileContentIn = new ArmoredInputStream(new ByteArrayInputStream(ascFileContent.getBytes()));
-        ByteArrayOutputStream bOut = new ByteArrayOutputStream();
-        int ch;
-
-        while ((ch = ascFileContentIn.read()) >= 0 && ascFileContentIn.isClearText())
-        {
-            bOut.write((byte)ch);
-        }
-        ascFileContentIn.close();
-        String extractedSha256 = bOut.toString().split(" ")[0];
-        return extractedSha256;
+        return b == '\t' || b == ' ';
     }
 }
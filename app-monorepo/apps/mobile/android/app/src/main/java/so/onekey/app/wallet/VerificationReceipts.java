@@ -0,0 +1,99 @@
+package so.onekey.app.wallet;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.StructStat;
+
+import androidx.annotation.Nullable;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+
+/**
+ * Remembers APKs that already passed the package name, PGP signature and SHA-256 checks, so
+ * checking the same unchanged file again costs a stat instead of a full pass over it.
+ *
+ * A receipt is keyed by path and bound to the size, mtime and inode of both the APK and its
+ * .SHA256SUMS.asc; if any of them changes the receipt no longer applies. It also holds the
+ * signed file name and digest it was checked against, and only applies while the current signed
+ * sums still say the same for that name.
+ */
+public class VerificationReceipts {
+    private static final String PREFS_NAME = "auto_update_verification_receipts";
+
+    private final SharedPreferences prefs;
+
+    public VerificationReceipts(Context context) {
+        prefs = context.getApplicationContext().getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    @Nullable
+    private static String fingerprint(File file) {
+        try {
+            StructStat stat = Os.stat(file.getAbsolutePath());
+            return stat.st_size + ":" + file.lastModified() + ":" + stat.st_ino;
+        } catch (ErrnoException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the verified SHA-256 of the file, or null when there is no receipt that still
+     * matches the file on disk, or that was not checked against signedSha256 for fileName.
+     */
+    @Nullable
+    public String verifiedSha256(File file, File ascFile, @Nullable String fileName, String signedSha256) {
+        String raw = prefs.getString(file.getAbsolutePath(), null);
+        if (raw == null) {
+            return null;
+        }
+        try {
+            JSONObject receipt = new JSONObject(raw);
+            String apk = fingerprint(file);
+            String asc = fingerprint(ascFile);
+            if (apk == null || asc == null
+                    || !apk.equals(receipt.getString("apk"))
+                    || !asc.equals(receipt.getString("asc"))
+                    || !nameOf(fileName).equals(receipt.optString("name", null))
+                    || !signedSha256.equals(receipt.getString("sha256"))
+                    || !receipt.getBoolean("signatureVerified")) {
+                invalidate(file);
+                return null;
+            }
+            return receipt.getString("sha256");
+        } catch (JSONException e) {
+            invalidate(file);
+            return null;
+        }
+    }
+
+    public void record(File file, File ascFile, @Nullable String fileName, String sha256) {
+        String apk = fingerprint(file);
+        String asc = fingerprint(ascFile);
+        if (apk == null || asc == null) {
+            return;
+        }
+        try {
+            JSONObject receipt = new JSONObject();
+            receipt.put("apk", apk);
+            receipt.put("asc", asc);
+            receipt.put("name", nameOf(fileName));
+            receipt.put("sha256", sha256);
+            receipt.put("signatureVerified", true);
+            prefs.edit().putString(file.getAbsolutePath(), receipt.toString()).apply();
+        } catch (JSONException ignored) {
+        }
+    }
+
+    private static String nameOf(@Nullable String fileName) {
+        return fileName != null ? fileName : "";
+    }
+
+    public void invalidate(File file) {
+        prefs.edit().remove(file.getAbsolutePath()).apply();
+    }
+}
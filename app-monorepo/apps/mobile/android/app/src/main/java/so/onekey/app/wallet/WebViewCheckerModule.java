@@ -3,20 +3,13 @@ package so.onekey.app.wallet;
 import android.app.Activity;
 import android.graphics.Color;
 
-import com.betomorrow.rnfilelogger.FileLoggerModule;
 import com.facebook.react.bridge.ReactApplicationContext;
 import com.facebook.react.bridge.ReactContextBaseJavaModule;
 import com.facebook.react.bridge.ReactMethod;
 
-import java.text.SimpleDateFormat;
-import java.util.Date;
-
 public class WebViewCheckerModule extends ReactContextBaseJavaModule {
-    private FileLoggerModule fileLogger;
-
     public WebViewCheckerModule(ReactApplicationContext context) {
         super(context);
-        fileLogger = new FileLoggerModule(getReactApplicationContext());
     }
 
     @Override
@@ -25,9 +18,7 @@ public class WebViewCheckerModule extends ReactContextBaseJavaModule {
     }
 
     public void log(String name, String msg) {
-        SimpleDateFormat sdf = new SimpleDateFormat("HH:mm:ss");
-        String currentTime = sdf.format(new Date());
-        fileLogger.write(1, currentTime + " | INFO : app => native => webviewChecker:" + name + ": " + msg);
+        NativeLogger.log("webviewChecker", name, msg);
     }
 
     @ReactMethod
@@ -2,14 +2,11 @@ package so.onekey.app.wallet.splashscreen;
 
 import android.os.Build;
 
-import com.betomorrow.rnfilelogger.FileLoggerModule;
 import com.facebook.react.bridge.ReactApplicationContext;
 import com.facebook.react.bridge.ReactContextBaseJavaModule;
 import com.facebook.react.bridge.ReactMethod;
 
-import java.text.SimpleDateFormat;
-import java.util.Date;
-
+import so.onekey.app.wallet.NativeLogger;
 import so.onekey.app.wallet.splashscreen.singletons.SplashScreen;
 
 public class SplashScreenModule extends ReactContextBaseJavaModule {
@@ -19,17 +16,12 @@ public class SplashScreenModule extends ReactContextBaseJavaModule {
         return "LegacySplashScreen";
     }
 
-    private FileLoggerModule fileLogger;
-
     public SplashScreenModule(ReactApplicationContext context) {
         super(context);
-        fileLogger = new FileLoggerModule(getReactApplicationContext());
     }
 
     public void log(String name, String msg) {
-        SimpleDateFormat sdf = new SimpleDateFormat("HH:mm:ss");
-        String currentTime = sdf.format(new Date());
-        fileLogger.write(1, currentTime + " | INFO : app => native => LegacySplashScreenModule:" + name + ": " + msg);
+        NativeLogger.log("LegacySplashScreenModule", name, msg);
     }
 
     @ReactMethod
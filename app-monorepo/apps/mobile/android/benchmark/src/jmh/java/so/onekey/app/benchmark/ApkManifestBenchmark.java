@@ -0,0 +1,50 @@
+package so.onekey.app.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import so.onekey.app.wallet.ApkManifestReader;
+
+@State(Scope.Benchmark)
+public class ApkManifestBenchmark {
+    // set with -PapkPath, see README.md
+    @Param("")
+    public String apkPath;
+
+    private File apk;
+
+    @Setup
+    public void setup() {
+        apk = new File(apkPath);
+        if (!apk.isFile()) {
+            throw new IllegalStateException("run with -PapkPath=<release apk>, got '" + apkPath + "'");
+        }
+    }
+
+    @Benchmark
+    public ApkManifestReader.Manifest manifestReader() throws IOException {
+        return ApkManifestReader.read(apk);
+    }
+
+    /**
+     * Baseline: index the whole archive, then inflate the manifest.
+     */
+    @Benchmark
+    public byte[] zipFile() throws IOException {
+        try (ZipFile zip = new ZipFile(apk)) {
+            ZipEntry entry = zip.getEntry("AndroidManifest.xml");
+            try (InputStream in = zip.getInputStream(entry)) {
+                return in.readAllBytes();
+            }
+        }
+    }
+}
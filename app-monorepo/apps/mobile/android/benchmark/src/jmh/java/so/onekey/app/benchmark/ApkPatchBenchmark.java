@@ -0,0 +1,64 @@
+package so.onekey.app.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+import so.onekey.app.wallet.ApkPatcher;
+
+/**
+ * Applying a BSDF2 patch with uncompressed blocks. fixtures/patch holds an old and a new file and
+ * the patch between them, with control entries that rewrite, insert, skip and seek backwards;
+ * setup fails unless the patch rebuilds the new file byte for byte.
+ */
+@State(Scope.Benchmark)
+public class ApkPatchBenchmark {
+    private File oldFile;
+    private File patchFile;
+    private int newSize;
+
+    @Setup
+    public void setup() throws IOException {
+        oldFile = copy("/fixtures/patch/old.bin");
+        patchFile = copy("/fixtures/patch/old-to-new.bsdf2");
+        byte[] expected;
+        try (InputStream in = ApkPatchBenchmark.class.getResourceAsStream("/fixtures/patch/new.bin")) {
+            expected = in.readAllBytes();
+        }
+        newSize = expected.length;
+        if (!Arrays.equals(patch().toByteArray(), expected)) {
+            throw new IllegalStateException("patch does not rebuild fixtures/patch/new.bin");
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        oldFile.delete();
+        patchFile.delete();
+    }
+
+    private static File copy(String name) throws IOException {
+        File file = File.createTempFile("apk-patch", null);
+        try (InputStream in = ApkPatchBenchmark.class.getResourceAsStream(name)) {
+            Files.copy(in, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        return file;
+    }
+
+    @Benchmark
+    public ByteArrayOutputStream patch() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(newSize);
+        ApkPatcher.apply(oldFile, patchFile, out);
+        return out;
+    }
+}
@@ -0,0 +1,54 @@
+package so.onekey.app.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import so.onekey.app.wallet.Digests;
+
+/**
+ * Full-file SHA-256 as done by checkFilePackage when no download-time digest is available, over
+ * synthetic APK-sized files. The file stays in the page cache between iterations, so this is the
+ * CPU/copy cost, not the storage.
+ */
+@State(Scope.Benchmark)
+public class HashingBenchmark {
+    @Param({"10", "50", "100", "300"})
+    public int sizeMb;
+
+    private File file;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        // as AutoUpdateModule does at startup
+        Digests.selectProvider();
+        file = File.createTempFile("apk-", ".bin");
+        Random random = new Random(sizeMb);
+        byte[] chunk = new byte[1024 * 1024];
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            for (int i = 0; i < sizeMb; i++) {
+                random.nextBytes(chunk);
+                out.write(chunk);
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Benchmark
+    public String sha256File() throws Exception {
+        return Digests.toHex(Digests.digestOf(file, file.length()).digest());
+    }
+}
@@ -0,0 +1,26 @@
+package so.onekey.app.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+
+import so.onekey.app.wallet.Digests;
+
+@State(Scope.Benchmark)
+public class HexBenchmark {
+    private byte[] digest;
+
+    @Setup
+    public void setup() {
+        digest = new byte[32];
+        new Random(1).nextBytes(digest);
+    }
+
+    @Benchmark
+    public String toHex() {
+        return Digests.toHex(digest);
+    }
+}
@@ -0,0 +1,75 @@
+package so.onekey.app.benchmark;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.openpgp.PGPPublicKey;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.Security;
+import java.util.Map;
+
+import so.onekey.app.wallet.Verification;
+
+/**
+ * Clear-signed SHA256SUMS verification. The fixtures are signed with a throwaway 4096-bit RSA key
+ * (the release key's size), whose public half is bundled next to them.
+ */
+@State(Scope.Benchmark)
+public class VerificationBenchmark {
+    private byte[] keyBlock;
+    private Map<Long, PGPPublicKey> keys;
+    private byte[] signed;
+    private byte[] tampered;
+
+    @Setup
+    public void setup() throws Exception {
+        // registered by the platform on Android
+        Security.addProvider(new BouncyCastleProvider());
+        keyBlock = read("/fixtures/release-key.asc");
+        keys = Verification.parseKeyRing(keyBlock);
+        signed = read("/fixtures/SHA256SUMS.asc");
+        tampered = signed.clone();
+        String text = new String(tampered);
+        int body = text.indexOf("\n\n") + 2;
+        tampered[body] = (byte) (tampered[body] == '0' ? '1' : '0');
+        if (Verification.verifiedContent(signed, keys) == null
+                || Verification.verifiedContent(tampered, keys) != null) {
+            throw new IllegalStateException("fixtures do not verify as expected");
+        }
+    }
+
+    private static byte[] read(String name) throws IOException {
+        try (InputStream in = VerificationBenchmark.class.getResourceAsStream(name)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int count;
+            while ((count = in.read(buffer)) > 0) {
+                out.write(buffer, 0, count);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    @Benchmark
+    public String verify() throws Exception {
+        return Verification.verifiedContent(signed, keys);
+    }
+
+    @Benchmark
+    public String verifyTampered() throws Exception {
+        return Verification.verifiedContent(tampered, keys);
+    }
+
+    /**
+     * The one-time key ring setup, paid once per process.
+     */
+    @Benchmark
+    public Map<Long, PGPPublicKey> parseKeyRing() throws Exception {
+        return Verification.parseKeyRing(keyBlock);
+    }
+}
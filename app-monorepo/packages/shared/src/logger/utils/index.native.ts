@@ -8,6 +8,7 @@ import {
   supportedCpuArchitectures,
   totalMemory,
 } from 'expo-device';
+import { NativeModules } from 'react-native';
 
 import { OneKeyLocalError } from '@onekeyhq/shared/src/errors';
 import {
@@ -46,6 +47,11 @@ const getLogFilePath = async (filename: string) => {
   if (!RNFS) {
     throw new OneKeyLocalError('RNFS is not available');
   }
+  // native modules keep compact binary logs, rendered as text only for the export
+  const { NativeLogModule } = NativeModules as {
+    NativeLogModule?: { exportLogs: (dir: string) => Promise<string> };
+  };
+  await NativeLogModule?.exportLogs(NATIVE_LOG_DIR_PATH);
   const isExist = await RNFS.exists(NATIVE_LOG_ZIP_PATH);
   if (!isExist) {
     await RNFS.mkdir(NATIVE_LOG_ZIP_PATH);
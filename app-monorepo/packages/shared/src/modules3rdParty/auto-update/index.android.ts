@@ -25,6 +25,8 @@ const buildFilePath = (version: string) => `${DIR_PATH}/${version}.apk`;
 interface IFileParams {
   downloadUrl: string;
   filePath: string;
+  // other urls serving the same file, raced against downloadUrl
+  mirrors?: string[];
 }
 
 const { AutoUpdateModule } = NativeModules as {
@@ -33,11 +35,59 @@ const { AutoUpdateModule } = NativeModules as {
     downloadAPK: (
       params: IFileParams & {
         notificationTitle: string;
+        // fetch byte ranges over this many parallel connections, 1 by default
+        connections?: number;
+        // the job is persisted and only runs (or resumes) while these hold
+        unmeteredOnly?: boolean;
+        chargingOnly?: boolean;
       },
     ) => Promise<void>;
     downloadASC: (params: IFileParams) => Promise<void>;
+    // downloadASC + downloadAPK in parallel, then verifyASC + verifyAPK; resolves with the verified filePath
+    downloadAndVerify: (
+      params: IFileParams & {
+        notificationTitle: string;
+        connections?: number;
+        unmeteredOnly?: boolean;
+        chargingOnly?: boolean;
+      },
+    ) => Promise<string>;
+    // rebuild filePath from the installed APK and a downloaded bsdiff (BSDF2) patch
+    applyAPKPatch: (params: { patchFilePath: string; filePath: string }) => Promise<{
+      durationMs: number;
+      patchBytes: number;
+      outputBytes: number;
+      bytesSaved: number;
+    }>;
     verifyASC: (params: IFileParams) => Promise<void>;
+    // cap update downloads, also while they run; 0 removes the cap.
+    // foregroundOnly (default true) lifts the cap while the app is in the background
+    setDownloadRateLimit: (params: {
+      bytesPerSecond: number;
+      foregroundOnly?: boolean;
+    }) => Promise<void>;
+    // per-phase timings of the most recent APK/ASC transfers
+    getTransferMetrics: () => Promise<
+      {
+        label: string;
+        host: string;
+        protocol: string | null;
+        error: string | null;
+        status: number;
+        dnsMs: number;
+        connectMs: number;
+        tlsMs: number;
+        ttfbMs: number;
+        bodyMs: number;
+        bodyBytes: number;
+        bytesPerSecond: number;
+        totalMs: number;
+        retries: number;
+        retryMs: number;
+      }[]
+    >;
     // an exception will be thrown when validation fails.
+    // hashing emits 'update/verifying' ({ progress, bytes, total }); clearCache rejects it with VERIFICATION_CANCELLED
     verifyAPK: (params: IFileParams) => Promise<void>;
     // verifyAPK will be called by default in the native module when calling to install the APK
     installAPK: (params: IFileParams) => Promise<void>;